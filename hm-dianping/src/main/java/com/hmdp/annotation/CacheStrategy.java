@@ -0,0 +1,13 @@
+package com.hmdp.annotation;
+
+// @HmdpCached 的缓存策略，对应 CacheClient 的几种查询方法
+public enum CacheStrategy {
+    // 普通TTL缓存，数据库中不存在时不缓存
+    TTL,
+    // 缓存空值防止缓存穿透（CacheClient.getShopPreventPenetrate）
+    PENETRATION,
+    // 逻辑过期防止缓存击穿（CacheClient.getShopPreventBreakDownByLogicExpire），第一次查询时写入
+    LOGICAL_EXPIRE,
+    // 概率提前刷新（CacheClient.getWithEarlyRefresh）
+    EARLY_REFRESH
+}
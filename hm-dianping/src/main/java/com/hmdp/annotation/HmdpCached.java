@@ -0,0 +1,33 @@
+package com.hmdp.annotation;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+import java.util.concurrent.TimeUnit;
+
+// 查询缓存：缓存key = prefix + key表达式的值，方法的返回值就是缓存的数据
+//  1. 返回值按方法声明的返回类型反序列化，集合、Object等类型反序列化后元素是Map，需要具体类型时用DTO包装（例如 ShopVouchersDTO）
+//  2. 返回 Result 时，失败的结果不会缓存
+//  💥注解在同一个类内部调用时不生效（和@Transactional一样），需要通过代理对象调用
+@Target(ElementType.METHOD)
+@Retention(RetentionPolicy.RUNTIME)
+@Documented
+public @interface HmdpCached {
+
+    // key前缀，例如 RedisConstants.CACHE_SHOP_KEY
+    String prefix();
+
+    // SpEL表达式，例如 "#id"、"#voucher.shopId"
+    String key();
+
+    CacheStrategy strategy() default CacheStrategy.PENETRATION;
+
+    long ttl() default 30L;
+
+    TimeUnit unit() default TimeUnit.MINUTES;
+
+    // 是否使用一级缓存，返回的对象会被调用方修改时必须设为false
+    boolean local() default true;
+}
@@ -0,0 +1,20 @@
+package com.hmdp.annotation;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+// 删除缓存：方法正常返回后删除 prefix + key表达式的值 对应的缓存（包括所有节点的一级缓存）
+//  在事务中调用时，事务提交之后才删除
+@Target(ElementType.METHOD)
+@Retention(RetentionPolicy.RUNTIME)
+@Documented
+public @interface HmdpEvict {
+
+    String prefix();
+
+    // SpEL表达式，例如 "#voucher.shopId"
+    String key();
+}
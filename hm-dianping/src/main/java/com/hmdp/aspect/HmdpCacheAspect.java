@@ -0,0 +1,134 @@
+package com.hmdp.aspect;
+
+import cn.hutool.core.util.BooleanUtil;
+import cn.hutool.core.util.StrUtil;
+import com.hmdp.annotation.HmdpCached;
+import com.hmdp.annotation.HmdpEvict;
+import com.hmdp.dto.Result;
+import com.hmdp.utils.CacheClient;
+import org.aspectj.lang.JoinPoint;
+import org.aspectj.lang.ProceedingJoinPoint;
+import org.aspectj.lang.annotation.AfterReturning;
+import org.aspectj.lang.annotation.Around;
+import org.aspectj.lang.annotation.Aspect;
+import org.aspectj.lang.reflect.MethodSignature;
+import org.springframework.context.expression.MethodBasedEvaluationContext;
+import org.springframework.core.DefaultParameterNameDiscoverer;
+import org.springframework.core.ParameterNameDiscoverer;
+import org.springframework.expression.Expression;
+import org.springframework.expression.ExpressionParser;
+import org.springframework.expression.spel.standard.SpelExpressionParser;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import javax.annotation.Resource;
+import java.lang.reflect.Method;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+// 处理 @HmdpCached、@HmdpEvict 注解，具体的缓存逻辑都交给 CacheClient
+@Aspect
+@Component
+public class HmdpCacheAspect {
+
+    @Resource
+    private CacheClient cacheClient;
+
+    private final ExpressionParser parser = new SpelExpressionParser();
+
+    private final ParameterNameDiscoverer nameDiscoverer = new DefaultParameterNameDiscoverer();
+
+    private final Map<String, Expression> expressions = new ConcurrentHashMap<>(); // 解析过的表达式
+
+    @Around("@annotation(cached)")
+    public Object cached(ProceedingJoinPoint joinPoint, HmdpCached cached) throws Throwable {
+        Method method = ((MethodSignature) joinPoint.getSignature()).getMethod();
+        Object id = resolveKey(cached.key(), method, joinPoint.getArgs());
+        try {
+            return get(cached, id, method.getReturnType(), key -> proceed(joinPoint));
+        } catch (UncacheableResult e) {
+            // 失败的结果不缓存，直接返回给调用方
+            return e.result;
+        }
+    }
+
+    // 在事务中时，等事务提交后再删除，否则提交前其他请求会把旧数据重新写进缓存；回滚了就不用删
+    @AfterReturning("@annotation(evict)")
+    public void evict(JoinPoint joinPoint, HmdpEvict evict) {
+        Method method = ((MethodSignature) joinPoint.getSignature()).getMethod();
+        Object id = resolveKey(evict.key(), method, joinPoint.getArgs());
+        String key = evict.prefix() + id;
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            cacheClient.delete(key);
+            return;
+        }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+            @Override
+            public void afterCommit() {
+                cacheClient.delete(key);
+            }
+        });
+    }
+
+    private <T> T get(HmdpCached cached, Object id, Class<T> type, Function<Object, T> loader) {
+        String prefix = cached.prefix();
+        switch (cached.strategy()) {
+            case TTL:
+                return cacheClient.get(prefix, id, type, loader, cached.ttl(), cached.unit(), false, cached.local());
+            case PENETRATION:
+                return cacheClient.get(prefix, id, type, loader, cached.ttl(), cached.unit(), true, cached.local());
+            case LOGICAL_EXPIRE:
+                T object = cacheClient.getShopPreventBreakDownByLogicExpire(prefix, id, type, loader, cached.ttl(), cached.unit());
+                if (object == null) {
+                    // 逻辑过期的数据需要提前预热，没预热的在第一次查询时写入
+                    object = loader.apply(id);
+                    if (object != null) {
+                        cacheClient.setWithLogicExpireTime(prefix + id, object, cached.ttl(), cached.unit());
+                    }
+                }
+                return object;
+            case EARLY_REFRESH:
+                return cacheClient.getWithEarlyRefresh(prefix, id, type, loader, cached.ttl(), cached.unit());
+            default:
+                throw new IllegalStateException("不支持的缓存策略：" + cached.strategy());
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> T proceed(ProceedingJoinPoint joinPoint) {
+        Object result;
+        try {
+            result = joinPoint.proceed();
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new RuntimeException(e);
+        }
+        if (result instanceof Result && !BooleanUtil.isTrue(((Result) result).getSuccess())) {
+            throw new UncacheableResult(result);
+        }
+        return (T) result;
+    }
+
+    // key表达式必须显式指定，用参数拼接的key会让按前缀统计的指标无限增长
+    private Object resolveKey(String key, Method method, Object[] args) {
+        if (StrUtil.isBlank(key)) {
+            throw new IllegalStateException("缓存注解必须指定key表达式：" + method);
+        }
+        Expression expression = expressions.computeIfAbsent(key, parser::parseExpression);
+        MethodBasedEvaluationContext context = new MethodBasedEvaluationContext(null, method, args, nameDiscoverer);
+        return expression.getValue(context);
+    }
+
+    // 用异常把不能缓存的结果带出 CacheClient
+    private static class UncacheableResult extends RuntimeException {
+        private final Object result;
+
+        private UncacheableResult(Object result) {
+            super(null, null, false, false);
+            this.result = result;
+        }
+    }
+}
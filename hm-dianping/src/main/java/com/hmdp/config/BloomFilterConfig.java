@@ -0,0 +1,37 @@
+package com.hmdp.config;
+
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.hmdp.entity.Shop;
+import com.hmdp.mapper.ShopMapper;
+import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.IdBloomFilter;
+import com.hmdp.utils.RedisConstants;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import java.util.concurrent.TimeUnit;
+
+@Configuration
+public class BloomFilterConfig {
+    // 商铺id的布隆过滤器：启动后在后台从tb_shop加载所有id，并注册到CacheClient
+    //  启动时不访问数据库，加载完成之前过滤器不拦截任何请求
+    @Bean(destroyMethod = "shutdown")
+    public IdBloomFilter shopBloomFilter(
+            ShopMapper shopMapper,
+            CacheClient cacheClient,
+            @Value("${hmdp.cache.bloom.shop.expected-insertions:100000}") long expectedInsertions,
+            @Value("${hmdp.cache.bloom.shop.fpp:0.01}") double fpp,
+            @Value("${hmdp.cache.bloom.shop.rebuild-minutes:60}") long rebuildMinutes,
+            @Value("${hmdp.cache.bloom.shop.init-retry-seconds:30}") long initRetrySeconds) {
+        IdBloomFilter bloomFilter = new IdBloomFilter(
+                "shop",
+                () -> shopMapper.selectObjs(new QueryWrapper<Shop>().select("id")),
+                expectedInsertions,
+                fpp);
+        bloomFilter.setInitRetryMillis(TimeUnit.SECONDS.toMillis(initRetrySeconds));
+        bloomFilter.scheduleRebuild(rebuildMinutes, TimeUnit.MINUTES);
+        cacheClient.registerBloomFilter(RedisConstants.CACHE_SHOP_KEY, bloomFilter);
+        return bloomFilter;
+    }
+}
@@ -0,0 +1,40 @@
+package com.hmdp.controller;
+
+
+import com.hmdp.dto.Result;
+import com.hmdp.utils.CacheClient;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import javax.annotation.Resource;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * <p>
+ * 缓存指标
+ * </p>
+ */
+@RestController
+@RequestMapping("/cache")
+public class CacheMetricsController {
+
+    @Resource
+    private CacheClient cacheClient;
+
+    /**
+     * 查询缓存指标
+     * @return 按key前缀统计的命中、未命中、加载耗时，以及一级缓存、请求合并、布隆过滤器、重建队列的统计
+     */
+    @GetMapping("/metrics")
+    public Result queryMetrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("prefixes", cacheClient.getMetrics());
+        metrics.put("localCache", cacheClient.getLocalCacheStats());
+        metrics.put("singleFlight", cacheClient.getSingleFlightStats());
+        metrics.put("bloomFilters", cacheClient.getBloomFilterStats());
+        metrics.put("refresh", cacheClient.getRefreshStats());
+        return Result.ok(metrics);
+    }
+}
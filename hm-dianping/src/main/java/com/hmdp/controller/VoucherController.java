@@ -45,6 +45,16 @@ public class VoucherController {
         return Result.ok(voucher.getId());
     }
 
+    /**
+     * 把秒杀券的下单用户从set迁移到位图
+     * @param id 优惠券id
+     * @return 迁移的用户数
+     */
+    @PostMapping("seckill/{id}/migrate-buyers")
+    public Result migrateSeckillBuyers(@PathVariable("id") Long id) {
+        return voucherService.migrateSeckillBuyers(id);
+    }
+
     /**
      * 查询店铺的优惠券列表
      * @param shopId 店铺id
@@ -3,6 +3,7 @@ package com.hmdp.controller;
 
 import com.hmdp.dto.Result;
 import com.hmdp.service.IVoucherOrderService;
+import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestMapping;
@@ -34,4 +35,23 @@ public class VoucherOrderController {
         return voucherOrderService.seckill(voucherId);
 //        return Result.fail("功能未完成");
     }
+
+    /**
+     * 查询秒杀订单的处理结果
+     * @param orderId 秒杀接口返回的订单id
+     * @return queued（排队入库中）、persisted（已入库）、failed（入库失败）
+     */
+    @GetMapping("/{id}/status")
+    public Result queryOrderStatus(@PathVariable("id") Long orderId) {
+        return voucherOrderService.queryOrderStatus(orderId);
+    }
+
+    /**
+     * 查询订单消费指标
+     * @return 吞吐量、批量入库耗时、下单到入库的延迟、队列长度
+     */
+    @GetMapping("/metrics")
+    public Result queryMetrics() {
+        return Result.ok(voucherOrderService.queryPipelineMetrics());
+    }
 }
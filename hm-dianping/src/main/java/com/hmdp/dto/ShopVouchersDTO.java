@@ -0,0 +1,13 @@
+package com.hmdp.dto;
+
+import com.hmdp.entity.Voucher;
+import lombok.Data;
+
+import java.util.List;
+
+// 店铺优惠券列表的缓存对象，不包含秒杀库存（库存变化太快，查询时再从redis读取）
+//  用对象包一层，集合元素才能按 Voucher 类型反序列化
+@Data
+public class ShopVouchersDTO {
+    private List<Voucher> vouchers;
+}
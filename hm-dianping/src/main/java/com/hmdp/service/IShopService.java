@@ -17,4 +17,6 @@ public interface IShopService extends IService<Shop> {
     Result getShopByID(Long id);
 
     Result updateShop(Shop shop);
+
+    Result saveShop(Shop shop);
 }
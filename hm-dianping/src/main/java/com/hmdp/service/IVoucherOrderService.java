@@ -4,6 +4,9 @@ import com.hmdp.dto.Result;
 import com.hmdp.entity.VoucherOrder;
 import com.baomidou.mybatisplus.extension.service.IService;
 
+import java.util.List;
+import java.util.Map;
+
 /**
  * <p>
  *  服务类
@@ -18,4 +21,12 @@ public interface IVoucherOrderService extends IService<VoucherOrder> {
     public Result deductStock(Long voucherId, Long userId);
 
     public void createOrder(VoucherOrder order);
+
+    public void createOrders(List<VoucherOrder> orders);
+
+    public List<VoucherOrder> cancelOrders(List<Long> orderIds);
+
+    Map<String, Object> queryPipelineMetrics();
+
+    Result queryOrderStatus(Long orderId);
 }
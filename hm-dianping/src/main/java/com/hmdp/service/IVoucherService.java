@@ -1,6 +1,7 @@
 package com.hmdp.service;
 
 import com.hmdp.dto.Result;
+import com.hmdp.dto.ShopVouchersDTO;
 import com.hmdp.entity.Voucher;
 import com.baomidou.mybatisplus.extension.service.IService;
 
@@ -16,5 +17,9 @@ public interface IVoucherService extends IService<Voucher> {
 
     Result queryVoucherOfShop(Long shopId);
 
+    ShopVouchersDTO listVoucherOfShop(Long shopId);
+
     void addSeckillVoucher(Voucher voucher);
+
+    Result migrateSeckillBuyers(Long voucherId);
 }
@@ -6,6 +6,7 @@ import cn.hutool.core.stream.CollectorUtil;
 import cn.hutool.core.util.BooleanUtil;
 import cn.hutool.core.util.StrUtil;
 import com.baomidou.mybatisplus.extension.plugins.pagination.Page;
+import com.hmdp.annotation.HmdpCached;
 import com.hmdp.dto.Result;
 import com.hmdp.dto.ScrollResult;
 import com.hmdp.dto.UserDTO;
@@ -17,19 +18,25 @@ import com.hmdp.service.IBlogService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.service.IFollowService;
 import com.hmdp.service.IUserService;
+import com.hmdp.utils.CacheClient;
 import com.hmdp.utils.RedisConstants;
 import com.hmdp.utils.SystemConstants;
 import com.hmdp.utils.UserHolder;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.aop.framework.AopContext;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.data.redis.core.ZSetOperations;
 import org.springframework.stereotype.Service;
 
 import javax.annotation.Resource;
+import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
 import java.util.stream.Collectors;
 
 /**
@@ -52,6 +59,9 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
     @Resource
     private IFollowService followService;
 
+    @Resource
+    private CacheClient cacheClient;
+
     @Override
     public Result queryHotBlog(Integer current) {
         // 根据用户查询
@@ -60,19 +70,24 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
                 .page(new Page<>(current, SystemConstants.MAX_PAGE_SIZE));
         // 获取当前页数据
         List<Blog> records = page.getRecords();
-        // 查询用户
-        records.forEach(blog ->{
-            setUser(blog);
-            // 追加判断blog是否被当前用户点赞，逻辑封装到isBlogLiked方法中
-            isBlogLiked(blog);
-        });
+        // 批量查询用户
+        setUsers(records);
+        // 追加判断blog是否被当前用户点赞，逻辑封装到isBlogLiked方法中
+        records.forEach(this::isBlogLiked);
         return Result.ok(records);
     }
 
+    @Override
+    @HmdpCached(prefix = RedisConstants.CACHE_BLOG_KEY, key = "#id", local = false)
+    public Blog getById(Serializable id) {
+        return super.getById(id);
+    }
+
     @Override
     public Result queryBlog(Long blogId) {
-        // 获取博客
-        Blog blog = getById(blogId);
+        // 获取博客（通过代理对象调用，才能走缓存）
+        IBlogService proxy = (IBlogService) AopContext.currentProxy();
+        Blog blog = proxy.getById(blogId);
         if(blog == null) {
             return Result.fail("博客不存在或已被删除！");
         }
@@ -99,18 +114,20 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
             // 3.1 更新数据库中点赞数量+1
             boolean success = update().eq("id", id).setSql("liked = liked + 1").update();
 
-            // 3.2 向redis中 SECKILL_STOCK_KEY 添加该用户
+            // 3.2 向redis中 SECKILL_STOCK_KEY 添加该用户，并删除博客缓存（点赞数变了）
             if(success) {
                 stringRedisTemplate.opsForZSet().add(key, userId.toString(), System.currentTimeMillis());
+                cacheClient.delete(RedisConstants.CACHE_BLOG_KEY + id);
             }
         } else {
             // 4. 如果已经点赞了
             // 4.1 更新数据库中点赞数量-1
             boolean success = update().eq("id", id).setSql("liked = liked - 1").update();
 
-            // 4.2 将redis中 SECKILL_STOCK_KEY 删除该用户
+            // 4.2 将redis中 SECKILL_STOCK_KEY 删除该用户，并删除博客缓存
             if(success) {
                 stringRedisTemplate.opsForZSet().remove(key, userId.toString());
+                cacheClient.delete(RedisConstants.CACHE_BLOG_KEY + id);
             }
         }
         return Result.ok();
@@ -204,16 +221,20 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
         log.info("list=" + list);
 
 
-        // 4. 将List<Long>转化为List<Blog>
-        String idsStr = StrUtil.join(",", list);
-        List<Blog> blogs = query().in("id", list).last("order by field(id, " + idsStr + ")").list();
-        for(Blog blog : blogs) {
-            // 获取用户信息，填充Blog
-            setUser(blog);
+        // 4. 将List<Long>转化为List<Blog>（批量查缓存，未命中的一次性查数据库，顺序和list一致）
+        List<Blog> blogs = new ArrayList<>(cacheClient.getMany(
+                RedisConstants.CACHE_BLOG_KEY,
+                list,
+                Blog.class,
+                ids -> listByIds(ids).stream().collect(Collectors.toMap(Blog::getId, Function.identity())),
+                RedisConstants.CACHE_BLOG_TTL,
+                TimeUnit.MINUTES).values());
 
-            // 追加判断blog是否被当前用户点赞，逻辑封装到isBlogLiked方法中
-            isBlogLiked(blog);
-        }
+        // 获取用户信息，填充Blog
+        setUsers(blogs);
+
+        // 追加判断blog是否被当前用户点赞，逻辑封装到isBlogLiked方法中
+        blogs.forEach(this::isBlogLiked);
         log.info("blogs=" + blogs);
 
         // 5. 封装成ScrollResult
@@ -249,8 +270,28 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
 
 
     private void setUser(Blog blog) {
-        User user = userService.getById(blog.getUserId());
-        blog.setName(user.getNickName());
-        blog.setIcon(user.getIcon());
+        setUsers(Collections.singletonList(blog));
+    }
+
+    // 批量填充博主信息：一次MGET查缓存，未命中的用户一次性查数据库
+    private void setUsers(List<Blog> blogs) {
+        List<Long> userIds = blogs.stream()
+                .map(Blog::getUserId)
+                .collect(Collectors.toList());
+        Map<Long, UserDTO> users = cacheClient.getMany(
+                RedisConstants.CACHE_USER_KEY,
+                userIds,
+                UserDTO.class,
+                ids -> userService.listByIds(ids).stream()
+                        .collect(Collectors.toMap(User::getId, user -> BeanUtil.copyProperties(user, UserDTO.class))),
+                RedisConstants.CACHE_USER_TTL,
+                TimeUnit.MINUTES);
+        for (Blog blog : blogs) {
+            UserDTO user = users.get(blog.getUserId());
+            if (user != null) {
+                blog.setName(user.getNickName());
+                blog.setIcon(user.getIcon());
+            }
+        }
     }
 }
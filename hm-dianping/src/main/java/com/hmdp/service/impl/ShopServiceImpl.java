@@ -9,7 +9,6 @@ import com.hmdp.utils.CacheClient;
 import com.hmdp.utils.RedisConstants;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
@@ -26,9 +25,6 @@ import java.util.concurrent.TimeUnit;
 @Slf4j
 @Service
 public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IShopService {
-    @Autowired
-    private StringRedisTemplate stringRedisTemplate;
-
     @Autowired
     private CacheClient cacheClient;
 
@@ -53,8 +49,20 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         }
         updateById(shop);
 
-        // 删除缓存
-        stringRedisTemplate.delete(RedisConstants.CACHE_SHOP_KEY + id);
+        // 删除缓存（同时通知所有节点删除一级缓存）
+        cacheClient.delete(RedisConstants.CACHE_SHOP_KEY + id);
         return Result.ok("更新商铺成功！");
     }
+
+    @Override
+    public Result saveShop(Shop shop) {
+        // 写入数据库
+        save(shop);
+
+        // 加入布隆过滤器，否则新商铺会被当成不存在的id拦截
+        cacheClient.addToBloomFilter(RedisConstants.CACHE_SHOP_KEY, shop.getId());
+
+        // 返回店铺id
+        return Result.ok(shop.getId());
+    }
 }
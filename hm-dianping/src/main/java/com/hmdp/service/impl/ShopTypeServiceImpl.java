@@ -6,6 +6,8 @@ import com.hmdp.entity.ShopType;
 import com.hmdp.mapper.ShopTypeMapper;
 import com.hmdp.service.IShopTypeService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.hmdp.utils.CacheExpirePolicy;
+import com.hmdp.utils.CacheMetrics;
 import com.hmdp.utils.RedisConstants;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.data.redis.core.StringRedisTemplate;
@@ -29,6 +31,12 @@ public class ShopTypeServiceImpl extends ServiceImpl<ShopTypeMapper, ShopType> i
     @Autowired
     private StringRedisTemplate stringRedisTemplate;
 
+    @Autowired
+    private CacheExpirePolicy cacheExpirePolicy;
+
+    @Autowired
+    private CacheMetrics cacheMetrics;
+
     @Override
     public Result getList() {
         // 从redis中查询商店类型
@@ -40,7 +48,9 @@ public class ShopTypeServiceImpl extends ServiceImpl<ShopTypeMapper, ShopType> i
         );
 
         // 存在的话直接返回
+        CacheMetrics.PrefixMetrics prefixMetrics = cacheMetrics.of(shop_type_key);
         if(!CollectionUtils.isEmpty(list)) {
+            prefixMetrics.hit();
             // 需要转化为对象数组
             List<ShopType> collect = list.stream()
                     .map(str -> JSONUtil.toBean(str, ShopType.class))
@@ -49,7 +59,10 @@ public class ShopTypeServiceImpl extends ServiceImpl<ShopTypeMapper, ShopType> i
         }
 
         // 不存在的话查询数据库，拿到商店类型
+        prefixMetrics.miss();
+        long begin = System.nanoTime();
         List<ShopType> shopTypes = list();
+        prefixMetrics.load(System.nanoTime() - begin);
 
         // 数据库中不存在则直接返回错误
         if(CollectionUtils.isEmpty(shopTypes)) {
@@ -62,7 +75,10 @@ public class ShopTypeServiceImpl extends ServiceImpl<ShopTypeMapper, ShopType> i
                 .collect(Collectors.toList());
 
         stringRedisTemplate.opsForList().rightPushAll(shop_type_key, json_list);
-        stringRedisTemplate.expire(shop_type_key, RedisConstants.CACHE_SHOP_TYPE_TTL, TimeUnit.MINUTES);
+        stringRedisTemplate.expire(
+                shop_type_key,
+                cacheExpirePolicy.ttlMillis(shop_type_key, RedisConstants.CACHE_SHOP_TYPE_TTL, TimeUnit.MINUTES),
+                TimeUnit.MILLISECONDS);
 
         // 返回
         return Result.ok(shopTypes);
@@ -1,11 +1,15 @@
 package com.hmdp.service.impl;
 
+import com.hmdp.annotation.HmdpCached;
 import com.hmdp.entity.UserInfo;
 import com.hmdp.mapper.UserInfoMapper;
 import com.hmdp.service.IUserInfoService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.hmdp.utils.RedisConstants;
 import org.springframework.stereotype.Service;
 
+import java.io.Serializable;
+
 /**
  * <p>
  *  服务实现类
@@ -17,4 +21,9 @@ import org.springframework.stereotype.Service;
 @Service
 public class UserInfoServiceImpl extends ServiceImpl<UserInfoMapper, UserInfo> implements IUserInfoService {
 
+    @Override
+    @HmdpCached(prefix = RedisConstants.CACHE_USER_INFO_KEY, key = "#id", local = false)
+    public UserInfo getById(Serializable id) {
+        return super.getById(id);
+    }
 }
@@ -1,5 +1,9 @@
 package com.hmdp.service.impl;
 
+import cn.hutool.core.bean.BeanUtil;
+import cn.hutool.core.exceptions.ExceptionUtil;
+import cn.hutool.core.lang.UUID;
+import cn.hutool.core.util.StrUtil;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.SeckillVoucher;
 import com.hmdp.entity.VoucherOrder;
@@ -7,14 +11,36 @@ import com.hmdp.mapper.VoucherOrderMapper;
 import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherOrderService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.hmdp.utils.OrderJournal;
+import com.hmdp.utils.RedisDelayQueue;
 import com.hmdp.utils.RedisWorker;
+import com.hmdp.utils.SeckillKeys;
+import com.hmdp.utils.SeckillOrderMetrics;
+import com.hmdp.utils.SeckillSoldOutRegistry;
+import com.hmdp.utils.SeckillStockQuota;
+import com.hmdp.utils.SeckillVoucherMetaCache;
+import com.hmdp.utils.TokenBucket;
 import com.hmdp.utils.SimpleLock;
 import com.hmdp.utils.UserHolder;
 import lombok.extern.slf4j.Slf4j;
-import org.redisson.api.RLock;
-import org.redisson.api.RedissonClient;
-import org.springframework.aop.framework.AopContext;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.context.annotation.Lazy;
 import org.springframework.core.io.ClassPathResource;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.RedisStreamCommands;
+import org.springframework.data.redis.connection.RedisZSetCommands;
+import org.springframework.data.redis.connection.stream.Consumer;
+import org.springframework.data.redis.connection.stream.MapRecord;
+import org.springframework.data.redis.connection.stream.PendingMessage;
+import org.springframework.data.redis.connection.stream.PendingMessages;
+import org.springframework.data.redis.connection.stream.PendingMessagesSummary;
+import org.springframework.data.redis.connection.stream.ReadOffset;
+import org.springframework.data.redis.connection.stream.RecordId;
+import org.springframework.data.redis.connection.stream.StreamOffset;
+import org.springframework.data.redis.connection.stream.StreamReadOptions;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.data.redis.core.script.DefaultRedisScript;
 import org.springframework.stereotype.Service;
@@ -22,12 +48,35 @@ import org.springframework.transaction.annotation.Transactional;
 
 import javax.annotation.PostConstruct;
 import javax.annotation.Resource;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
 import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+import static com.hmdp.utils.RedisConstants.*;
 
 /**
  * <p>
@@ -39,102 +88,1059 @@ import java.util.concurrent.Executors;
  */
 @Slf4j
 @Service
-public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, VoucherOrder> implements IVoucherOrderService {
+public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, VoucherOrder> implements IVoucherOrderService, SmartLifecycle {
     @Resource
     private RedisWorker redisWorker;
 
     @Resource
     private ISeckillVoucherService seckillVoucherService;
 
-    @Resource
-    private RedissonClient redissonClient;
-
     @Resource
     private StringRedisTemplate stringRedisTemplate;
 
     private final static DefaultRedisScript<Long> SeckillRedisScript;
 
+    private final static DefaultRedisScript<Long> SeckillTakeScript;
+
+    private final static DefaultRedisScript<Long> SeckillRollbackScript;
+
     static {
         SeckillRedisScript = new DefaultRedisScript<>();
         SeckillRedisScript.setLocation(new ClassPathResource("seckill.lua"));
         SeckillRedisScript.setResultType(Long.class);
+
+        SeckillTakeScript = new DefaultRedisScript<>();
+        SeckillTakeScript.setLocation(new ClassPathResource("seckill_take.lua"));
+        SeckillTakeScript.setResultType(Long.class);
+
+        SeckillRollbackScript = new DefaultRedisScript<>();
+        SeckillRollbackScript.setLocation(new ClassPathResource("seckill_rollback.lua"));
+        SeckillRollbackScript.setResultType(Long.class);
     }
 
-    private final BlockingQueue<VoucherOrder> queue = new ArrayBlockingQueue<>(1024 * 1024); // 阻塞队列
-    private final static ExecutorService pool = Executors.newSingleThreadExecutor();
 
-    private IVoucherOrderService proxy;
+    private List<BlockingQueue<VoucherOrder>> queues; // 阻塞队列，每个分区一个
+    private ExecutorService pool;
+
+    // 订单队列模式：memory（进程内阻塞队列，重启会丢单）、stream（Redis Stream消费者组，lua脚本里原子写入）
+    @Value("${hmdp.seckill.queue-mode:memory}")
+    private String queueMode;
+
+    // 消费线程数，订单按userId分区，同一个用户的订单总是由同一个线程串行处理
+    //  stream模式下每个优惠券分片一个stream，按stream key分给消费线程，同一个用户在同一个优惠券上的订单仍然串行处理
+    @Value("${hmdp.seckill.partitions:4}")
+    private int partitions;
+
+    // 进程内队列的总容量，平均分给每个分区
+    @Value("${hmdp.seckill.queue-capacity:1048576}")
+    private int queueCapacity;
+
+    // 每批最多处理的订单数，以及凑一批最多等待的时间
+    @Value("${hmdp.seckill.batch-size:100}")
+    private int batchSize;
+
+    @Value("${hmdp.seckill.batch-millis:50}")
+    private long batchMillis;
+
+    // memory模式下的本地预写日志，订单进入队列之前先落盘，重启后重放
+    @Value("${hmdp.seckill.journal.enabled:false}")
+    private boolean journalEnabled;
+
+    @Value("${hmdp.seckill.journal.dir:data/journal}")
+    private String journalDir;
+
+    @Value("${hmdp.seckill.journal.segment-mb:64}")
+    private long journalSegmentMb;
+
+    // 下单请求最多等待多久让自己的记录刷盘，超时也照常下单（记录已经在page cache里了）
+    @Value("${hmdp.seckill.journal.fsync-wait-millis:5}")
+    private long journalFsyncWaitMillis;
+
+    private OrderJournal journal;
+
+    @Value("${hmdp.seckill.stream.consumer:}")
+    private String consumerName;
+
+    // 消费线程负责的stream都没有新消息时，多久之后再读一次（stream分散在集群的不同slot，不能一个命令阻塞读取多个）
+    @Value("${hmdp.seckill.stream.idle-millis:50}")
+    private long streamIdleMillis;
+
+    // 超过这个时间还没确认的消息，认为消费者已经挂了，由当前节点接管
+    @Value("${hmdp.seckill.stream.claim-idle-seconds:60}")
+    private long claimIdleSeconds;
+
+    // 同一条消息投递超过这个次数还失败，转入死信stream，不再阻塞pending-list
+    @Value("${hmdp.seckill.stream.max-deliveries:5}")
+    private long maxDeliveries;
+
+    // 限流：本节点的秒杀QPS、每个优惠券在整个集群的QPS、每个用户在一个窗口内的请求次数，小于等于0表示不限制
+    @Value("${hmdp.seckill.limit.local-qps:0}")
+    private double localQps;
+
+    @Value("${hmdp.seckill.limit.local-burst:100}")
+    private long localBurst;
+
+    @Value("${hmdp.seckill.limit.cluster-qps:0}")
+    private double clusterQps;
+
+    @Value("${hmdp.seckill.limit.cluster-burst:100}")
+    private long clusterBurst;
+
+    @Value("${hmdp.seckill.limit.user-max-requests:0}")
+    private int userMaxRequests;
+
+    @Value("${hmdp.seckill.limit.user-window-millis:1000}")
+    private long userWindowMillis;
+
+    private TokenBucket localLimiter;
+
+    // 下单用户的记录方式：set（旧方式）、bitmap（按userId置位，省内存），切到bitmap后可以调用迁移接口把旧的set转过去
+    @Value("${hmdp.seckill.buyer-store:set}")
+    private String buyerStore;
+
+    // 位图记录的最大userId，位图长度 = 最大偏移量/8，默认上限对应每个分片约12MB，更大的id用set记录
+    @Value("${hmdp.seckill.buyer-bitmap-max-id:100000000}")
+    private long buyerBitmapMaxId;
+
+    // 订单状态在redis中保留的时间，过期后查询会回到数据库
+    @Value("${hmdp.seckill.status-ttl-seconds:600}")
+    private long statusTtlSeconds;
+
+    // 订单状态：queued、persisted、failed、cancelled、unknown
+    private static final String STATUS_QUEUED = "queued";       // 已经抢到，排队入库中
+    private static final String STATUS_PERSISTED = "persisted"; // 已经入库
+    private static final String STATUS_FAILED = "failed";       // 入库失败
+    private static final String STATUS_CANCELLED = "cancelled"; // 超时未支付，已取消
+    private static final String STATUS_UNKNOWN = "unknown";     // 订单不存在
+
+    // 数据库中的订单状态：1未支付、4已取消
+    private static final int ORDER_UNPAID = 1;
+    private static final int ORDER_CANCELLED = 4;
+
+    // 订单入库后多久不支付自动取消，小于等于0表示不取消
+    @Value("${hmdp.seckill.timeout.pay-minutes:15}")
+    private long payTimeoutMinutes;
+
+    // 轮询到期订单的间隔
+    @Value("${hmdp.seckill.timeout.poll-millis:1000}")
+    private long timeoutPollMillis;
+
+    // 领取后超过这个时间还没处理完，会被重新领取
+    @Value("${hmdp.seckill.timeout.process-seconds:60}")
+    private long timeoutProcessSeconds;
+
+    private RedisDelayQueue timeoutQueue;        // 待取消订单的延迟队列，分数是支付截止时间
+    private ScheduledExecutorService timeoutPoller;
+
+    @Resource
+    private SeckillOrderMetrics orderMetrics;
+
+    @Resource
+    private SeckillSoldOutRegistry soldOutRegistry;
+
+    @Resource
+    private SeckillVoucherMetaCache metaCache;
+
+    @Resource
+    private SeckillStockQuota stockQuota;
+
+    @Lazy
+    @Resource
+    private IVoucherOrderService proxy; // 事务需要通过代理对象调用，消费线程里拿不到AopContext
+
+    // 队列积压到容量的这个比例时，新的秒杀请求直接返回繁忙（stream模式下按queue-capacity折算成每个stream的长度）
+    @Value("${hmdp.seckill.high-watermark:0.8}")
+    private double highWatermark;
+
+    // 停机时最多等待多久把队列里的订单入库，要小于spring.lifecycle.timeout-per-shutdown-phase
+    @Value("${hmdp.seckill.drain-timeout-seconds:20}")
+    private long drainTimeoutSeconds;
+
+    private static final long IDLE_POLL_MILLIS = 200; // 队列为空时多久检查一次是否在停机
+
+    // stream长度的缓存，每个stream一个（查询时间、长度），过期了才重新查XLEN
+    private static final long STREAM_LENGTH_REFRESH_MILLIS = 100;
+    private final Map<String, long[]> streamLengths = new ConcurrentHashMap<>();
+
+    // 本节点已经登记过的stream，登记时创建消费者组并写入索引，消费线程从索引里发现新的stream
+    private final Set<String> registeredStreams = ConcurrentHashMap.newKeySet();
+    private static final long STREAM_INDEX_REFRESH_MILLIS = 1000;
+    // 秒杀结束超过这个时间、并且已经消费完的stream从索引中移除
+    private static final long STREAM_RETIRE_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
+    private volatile boolean running;  // 是否在接收秒杀请求、消费订单
+    private volatile boolean draining; // 正在停机排空队列
 
     @PostConstruct
     private void init() {
-        pool.submit(new consumeOrder());
+        if (localQps > 0) {
+            localLimiter = new TokenBucket(localQps, localBurst);
+        }
+        if (!isStreamMode()) {
+            queues = new ArrayList<>(partitions);
+            for (int i = 0; i < partitions; i++) {
+                queues.add(new ArrayBlockingQueue<>(partitionCapacity()));
+            }
+        }
+        timeoutQueue = new RedisDelayQueue(stringRedisTemplate, ORDER_TIMEOUT_KEY);
+    }
+
+    // 容器启动完成后才开始消费，消费线程里用到的代理对象、数据源都已经就绪
+    @Override
+    public void start() {
+        // 1. 先做可能失败的准备工作（打开订单日志、创建消费者组），失败时还没有启动任何消费线程
+        if (isStreamMode()) {
+            if (StrUtil.isBlank(consumerName)) {
+                consumerName = defaultConsumerName();
+            }
+            for (int i = 0; i < partitions; i++) {
+                createConsumerGroup(streamKey(i));
+            }
+        } else if (journalEnabled) {
+            openJournal();
+        }
+
+        // 2. 再标记为运行中，消费线程看到running=false且队列为空时会直接退出
+        //  消费线程是守护线程，停机时由stop()负责排空，不会因为线程还在而让JVM无法退出
+        running = true;
+        AtomicInteger index = new AtomicInteger();
+        pool = Executors.newFixedThreadPool(partitions, r -> {
+            Thread thread = new Thread(r, "order-consumer-" + index.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+        for (int i = 0; i < partitions; i++) {
+            pool.submit(isStreamMode() ? new consumeStreamOrder(i, consumerName + "-" + i) : new consumeOrder(queues.get(i)));
+        }
+
+        if (payTimeoutMinutes > 0) {
+            timeoutPoller = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "order-timeout");
+                thread.setDaemon(true);
+                return thread;
+            });
+            timeoutPoller.scheduleWithFixedDelay(this::cancelTimeoutOrders, timeoutPollMillis, timeoutPollMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    // 停机：先拒绝新的秒杀请求，再等消费线程把队列排空，超时后中断消费线程并报告没入库的订单
+    //  phase最大，在web服务器停止之前执行，停机期间到达的请求会收到“系统繁忙”
+    @Override
+    public void stop() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        draining = true;
+        long begin = System.nanoTime();
+        long before = pendingOrders();
+
+        // 1. 消费线程看到running=false后，处理完队列里剩下的订单就退出
+        pool.shutdown();
+        try {
+            if (!pool.awaitTermination(drainTimeoutSeconds, TimeUnit.SECONDS)) {
+                pool.shutdownNow();
+                pool.awaitTermination(5, TimeUnit.SECONDS);
+            }
+        } catch (InterruptedException e) {
+            pool.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+        if (timeoutPoller != null) {
+            timeoutPoller.shutdownNow();
+        }
+        draining = false;
+
+        // 2. 报告排空结果
+        long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - begin);
+        if (isStreamMode()) {
+            // 没确认的消息留在pending-list里，由其他节点接管或者重启后处理
+            log.info("订单消费已停止，耗时{}ms", millis);
+            return;
+        }
+        List<VoucherOrder> leftovers = new ArrayList<>();
+        for (BlockingQueue<VoucherOrder> queue : queues) {
+            leftovers.addAll(queue);
+        }
+        long drained = before - leftovers.size();
+        log.info("订单队列排空结束，入库{}条，耗时{}ms，速率{}/s", drained, millis, millis == 0 ? drained : drained * 1000 / millis);
+        if (!leftovers.isEmpty()) {
+            if (journal != null) {
+                log.warn("还有{}条订单没有入库，已记录在本地日志中，下次启动时重放", leftovers.size());
+            } else {
+                log.error("还有{}条订单没有入库，需要人工补单：{}", leftovers.size(),
+                        leftovers.stream().map(order -> order.getId() + ":" + order.getUserId() + ":" + order.getVoucherId())
+                                .collect(Collectors.joining(",")));
+            }
+        }
+        if (journal != null) {
+            journal.close();
+        }
+    }
+
+    @Override
+    public boolean isRunning() {
+        return running;
+    }
+
+    private int partitionCapacity() {
+        return Math.max(1, queueCapacity / partitions);
+    }
+
+    // 本节点还没入库的订单数，stream模式下是所有节点共享的积压
+    private long pendingOrders() {
+        long size = 0;
+        if (isStreamMode()) {
+            for (String streamKey : allStreams().keySet()) {
+                Long streamSize = stringRedisTemplate.opsForStream().size(streamKey);
+                size += streamSize == null ? 0 : streamSize;
+            }
+            return size;
+        }
+        for (BlockingQueue<VoucherOrder> queue : queues) {
+            size += queue.size();
+        }
+        return size;
+    }
+
+    // 打开预写日志，上次没入库的订单重新放回队列（在单独的线程里放，队列满了会等待消费）
+    private void openJournal() {
+        journal = new OrderJournal(new File(journalDir), journalSegmentMb * 1024 * 1024);
+        List<VoucherOrder> recovered;
+        try {
+            recovered = journal.open();
+        } catch (IOException e) {
+            throw new IllegalStateException("打开订单日志失败，dir=" + journalDir, e);
+        }
+        if (recovered.isEmpty()) {
+            return;
+        }
+        Thread replay = new Thread(() -> {
+            try {
+                for (VoucherOrder order : recovered) {
+                    queues.get(partitionOf(order.getUserId())).put(order);
+                }
+                log.info("订单日志重放完成，共{}条", recovered.size());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, "order-journal-replay");
+        replay.setDaemon(true);
+        replay.start();
+    }
+
+    private boolean isStreamMode() {
+        return "stream".equalsIgnoreCase(queueMode);
+    }
+
+    // 按userId分区
+    private int partitionOf(Long userId) {
+        return Math.floorMod(Long.hashCode(userId) * 0x9E3779B9, partitions);
+    }
+
+    // 旧版本按分区写入的stream，第0个分区沿用最早的stream，升级前没处理完的订单由对应的消费线程继续处理
+    private static String streamKey(int partition) {
+        return partition == 0 ? SECKILL_STREAM_KEY : SECKILL_STREAM_KEY + ":" + partition;
+    }
+
+    // stream由哪个消费线程处理：旧的分区stream还是由原来的分区处理，优惠券的stream按key分配
+    private int consumerOf(String streamKey) {
+        for (int i = 0; i < partitions; i++) {
+            if (streamKey(i).equals(streamKey)) {
+                return i;
+            }
+        }
+        return Math.floorMod(streamKey.hashCode() * 0x9E3779B9, partitions);
+    }
+
+    // 所有需要消费的stream：stream key -> 优惠券id（旧的分区stream没有优惠券id，为null）
+    private Map<String, Long> allStreams() {
+        Map<String, Long> streams = new HashMap<>();
+        for (int i = 0; i < partitions; i++) {
+            streams.put(streamKey(i), null);
+        }
+        Map<Object, Object> index = stringRedisTemplate.opsForHash().entries(SECKILL_STREAM_INDEX_KEY);
+        index.forEach((key, voucherId) -> streams.put(key.toString(), Long.valueOf(voucherId.toString())));
+        return streams;
+    }
+
+    // 第一次往stream写订单之前登记：创建消费者组，并写入索引让消费线程发现它
+    //  在lua脚本之前执行，脚本写入的消息一定有人消费
+    private void registerStream(String streamKey, Long voucherId) {
+        if (registeredStreams.contains(streamKey)) {
+            return;
+        }
+        createConsumerGroup(streamKey);
+        stringRedisTemplate.opsForHash().put(SECKILL_STREAM_INDEX_KEY, streamKey, voucherId.toString());
+        registeredStreams.add(streamKey);
     }
 
     // 异步消费订单
     private class consumeOrder implements Runnable {
+        private final BlockingQueue<VoucherOrder> queue;
+
+        private consumeOrder(BlockingQueue<VoucherOrder> queue) {
+            this.queue = queue;
+        }
+
         @Override
         public void run() {
-            while(true) {
+            List<VoucherOrder> orders = new ArrayList<>(batchSize);
+            // 停机时不再有新订单进来，把队列里剩下的处理完再退出
+            while(running || !queue.isEmpty()) {
                 try {
-                    // 1. 获取队列中的订单消息
-                    VoucherOrder order = queue.take();
+                    // 1. 获取队列中的订单消息：等到第一条后，最多再等batchMillis凑满一批
+                    orders.clear();
+                    VoucherOrder first = queue.poll(IDLE_POLL_MILLIS, TimeUnit.MILLISECONDS);
+                    if (first == null) {
+                        continue;
+                    }
+                    orders.add(first);
+                    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(batchMillis);
+                    while (orders.size() < batchSize) {
+                        if (queue.drainTo(orders, batchSize - orders.size()) > 0) {
+                            continue;
+                        }
+                        long remaining = deadline - System.nanoTime();
+                        VoucherOrder order = remaining > 0 ? queue.poll(remaining, TimeUnit.NANOSECONDS) : null;
+                        if (order == null) {
+                            break;
+                        }
+                        orders.add(order);
+                    }
 
-                    // 2. 处理订单业务（比如存储等）
-                    handleOrder(order);
+                    // 2. 批量处理订单业务（比如存储等），进程内队列没法重试，失败的只能记录下来
+                    List<VoucherOrder> failed = handleOrders(orders);
+                    if (!failed.isEmpty()) {
+                        log.error("订单保存失败：{}", failed);
+                        updateStatus(failed, STATUS_FAILED);
+                    }
+                    // 3. 这一批都处理完了，日志里不再需要重放
+                    if (journal != null) {
+                        journal.commit(orders);
+                    }
                 } catch (InterruptedException e) {
-                    throw new RuntimeException(e);
+                    // 排空超时被中断，队列里剩下的订单由stop统计
+                    Thread.currentThread().interrupt();
+                    return;
                 }
             }
         }
     }
 
-    // 真正处理订单的方法
-    private void handleOrder(VoucherOrder order) {
-        // 1. 首先获取分布式锁对象
-        RLock lock = redissonClient.getLock("order:" + order.getUserId());
-        boolean isLock = false;
-        try {
-            // 2. 尝试上锁
-            isLock = lock.tryLock();
+    // 从Redis Stream消费订单，处理成功后才ACK，没有ACK的消息留在pending-list里，挂了重启也不会丢
+    //  每个消费线程负责一部分stream（按stream key分配），轮流非阻塞地读取，都没有新消息时等待streamIdleMillis
+    private class consumeStreamOrder implements Runnable {
+        private final int partition;
+        private final String consumer;
+        private final Map<String, Long> streams = new HashMap<>(); // 负责的stream -> 优惠券id
+        private long lastRecoverTime = 0;
+        private long lastRefreshTime = 0;
+
+        private consumeStreamOrder(int partition, String consumer) {
+            this.partition = partition;
+            this.consumer = consumer;
+            this.streams.put(streamKey(partition), null);
+        }
 
-            // 3. 如果没拿到锁，说明同一用户已经拿到锁并且大概率要抢购订单了，所以当前线程不能再获取了
-            if(!isLock) {
-                log.error("您已经抢过优惠券了，请勿重复抢购！");
+        @Override
+        public void run() {
+            // 1. 启动时先处理上次没确认的消息
+            refreshStreams();
+            for (String streamKey : streams.keySet()) {
+                handlePendingList(streamKey);
+            }
+
+            // 停机时处理完当前这一批就退出，没确认的消息留在pending-list里
+            while(running && !Thread.currentThread().isInterrupted()) {
+                try {
+                    // 2. 定期从索引中发现新的stream，接管其他消费者长时间没确认的消息
+                    long now = System.currentTimeMillis();
+                    if (now - lastRefreshTime > STREAM_INDEX_REFRESH_MILLIS) {
+                        refreshStreams();
+                    }
+                    boolean recover = now - lastRecoverTime > claimIdleSeconds * 1000;
+                    if (recover) {
+                        lastRecoverTime = now;
+                    }
+
+                    // 3. 依次读取每个stream的新消息 XREADGROUP GROUP g1 c1 COUNT n STREAMS stream.orders:voucher:{id:i} >
+                    boolean idle = true;
+                    for (String streamKey : new ArrayList<>(streams.keySet())) {
+                        if (!running) {
+                            break;
+                        }
+                        if (recover) {
+                            claimIdleMessages(streamKey);
+                            handlePendingList(streamKey);
+                        }
+                        List<MapRecord<String, Object, Object>> records = readStream(streamKey, ReadOffset.lastConsumed());
+                        if (records.isEmpty()) {
+                            retireIfDone(streamKey);
+                            continue;
+                        }
+                        idle = false;
+                        // 4. 批量处理并ACK，有失败的就去处理pending-list
+                        if (!handleRecords(streamKey, records)) {
+                            handlePendingList(streamKey);
+                        }
+                    }
+                    if (idle) {
+                        Thread.sleep(streamIdleMillis);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                } catch (Exception e) {
+                    if (!running) {
+                        return;
+                    }
+                    log.error("处理stream订单异常", e);
+                    try {
+                        Thread.sleep(200);
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                }
+            }
+        }
+
+        // 从索引中找出分给自己的stream，消费者组在登记时已经创建
+        private void refreshStreams() {
+            lastRefreshTime = System.currentTimeMillis();
+            try {
+                allStreams().forEach((streamKey, voucherId) -> {
+                    if (consumerOf(streamKey) == partition && !streams.containsKey(streamKey)) {
+                        streams.put(streamKey, voucherId);
+                        handlePendingList(streamKey);
+                    }
+                });
+            } catch (Exception e) {
+                log.error("读取订单stream索引失败", e);
+            }
+        }
+
+        // 秒杀结束一段时间、已经没有消息和未确认的消息，不再读取这个stream
+        //  秒杀结束后lua脚本不会再写入订单（判断时间窗口），所以不会漏掉后来的消息
+        private void retireIfDone(String streamKey) {
+            Long voucherId = streams.get(streamKey);
+            if (voucherId == null || !metaCache.get(voucherId).ended(System.currentTimeMillis() - STREAM_RETIRE_MILLIS)) {
                 return;
             }
+            Long size = stringRedisTemplate.opsForStream().size(streamKey);
+            PendingMessagesSummary summary = stringRedisTemplate.opsForStream().pending(streamKey, SECKILL_STREAM_GROUP);
+            if ((size == null || size == 0) && (summary == null || summary.getTotalPendingMessages() == 0)) {
+                stringRedisTemplate.opsForHash().delete(SECKILL_STREAM_INDEX_KEY, streamKey);
+                streams.remove(streamKey);
+                log.info("秒杀已结束，订单stream不再消费，stream={}", streamKey);
+            }
+        }
 
-            // 4. 如果拿到锁了，则开始抢购业务
-            proxy.createOrder(order);
+        // ReadOffset.lastConsumed()读新消息，ReadOffset.from("0")读自己pending-list中的消息
+        private List<MapRecord<String, Object, Object>> readStream(String streamKey, ReadOffset offset) {
+            List<MapRecord<String, Object, Object>> records = stringRedisTemplate.opsForStream().read(
+                    Consumer.from(SECKILL_STREAM_GROUP, consumer),
+                    StreamReadOptions.empty().count(batchSize),
+                    StreamOffset.create(streamKey, offset));
+            return records == null ? new ArrayList<>() : new ArrayList<>(records);
+        }
 
-        } finally {
-            if(isLock) {
-                lock.unlock();
+        // 处理pending-list中已经投递、但没有确认的消息
+        private void handlePendingList(String streamKey) {
+            while (running) {
+                try {
+                    List<MapRecord<String, Object, Object>> records = readStream(streamKey, ReadOffset.from("0"));
+                    // pending-list已经处理完了
+                    if (records.isEmpty()) {
+                        return;
+                    }
+                    if (!handleRecords(streamKey, records)) {
+                        // 还有没处理成功的，稍后再试
+                        Thread.sleep(200);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                } catch (Exception e) {
+                    log.error("处理pending-list订单异常，stream={}", streamKey, e);
+                    try {
+                        Thread.sleep(200);
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                }
+            }
+        }
+
+        // 返回这一批是否全部处理成功，成功的消息ACK后删除，避免stream无限增长
+        private boolean handleRecords(String streamKey, List<MapRecord<String, Object, Object>> records) {
+            List<VoucherOrder> orders = new ArrayList<>(records.size());
+            for (MapRecord<String, Object, Object> record : records) {
+                VoucherOrder order = BeanUtil.fillBeanWithMap(record.getValue(), new VoucherOrder(), true);
+                // 消息id里的时间戳就是下单时间
+                order.setCreateTime(LocalDateTime.ofInstant(Instant.ofEpochMilli(record.getId().getTimestamp()), ZoneId.systemDefault()));
+                orders.add(order);
+            }
+            Set<Long> failedIds = handleOrders(orders).stream().map(VoucherOrder::getId).collect(Collectors.toSet());
+
+            boolean allDone = true;
+            for (int i = 0; i < records.size(); i++) {
+                MapRecord<String, Object, Object> record = records.get(i);
+                if (!failedIds.contains(orders.get(i).getId()) || moveToDeadLetter(streamKey, record)) {
+                    stringRedisTemplate.opsForStream().acknowledge(streamKey, SECKILL_STREAM_GROUP, record.getId());
+                    stringRedisTemplate.opsForStream().delete(streamKey, record.getId());
+                } else {
+                    allDone = false;
+                }
+            }
+            return allDone;
+        }
+
+        // 反复失败的消息转入死信stream，留给人工处理
+        private boolean moveToDeadLetter(String streamKey, MapRecord<String, Object, Object> record) {
+            PendingMessages pending = stringRedisTemplate.opsForStream().pending(
+                    streamKey, Consumer.from(SECKILL_STREAM_GROUP, consumer),
+                    Range.closed(record.getId().getValue(), record.getId().getValue()), 1);
+            if (pending.isEmpty() || pending.get(0).getTotalDeliveryCount() < maxDeliveries) {
+                return false;
+            }
+            stringRedisTemplate.opsForStream().add(SECKILL_STREAM_DEAD_KEY, record.getValue());
+            updateStatus(Collections.singletonList(BeanUtil.fillBeanWithMap(record.getValue(), new VoucherOrder(), true)), STATUS_FAILED);
+            log.error("订单多次处理失败，已转入死信队列，recordId={}，order={}", record.getId(), record.getValue());
+            return true;
+        }
+
+        // 把其他消费者（比如已经下线的节点）长时间没确认的消息转到自己名下
+        private void claimIdleMessages(String streamKey) {
+            PendingMessages pending = stringRedisTemplate.opsForStream().pending(
+                    streamKey, SECKILL_STREAM_GROUP, Range.unbounded(), 100);
+            Duration minIdle = Duration.ofSeconds(claimIdleSeconds);
+            RecordId[] ids = pending.stream()
+                    .filter(message -> !consumer.equals(message.getConsumerName()))
+                    .filter(message -> message.getElapsedTimeSinceLastDelivery().compareTo(minIdle) >= 0)
+                    .map(PendingMessage::getId)
+                    .toArray(RecordId[]::new);
+            if (ids.length == 0) {
+                return;
+            }
+            stringRedisTemplate.execute((RedisCallback<Object>) connection -> connection.streamCommands().xClaimJustId(
+                    streamKey.getBytes(StandardCharsets.UTF_8), SECKILL_STREAM_GROUP, consumer,
+                    RedisStreamCommands.XClaimOptions.minIdle(minIdle).ids(ids)));
+            log.warn("接管了{}条超时未确认的订单消息，stream={}", ids.length, streamKey);
+        }
+    }
+
+    // 创建消费者组，stream不存在时一起创建（XGROUP CREATE stream.orders g1 0 MKSTREAM）
+    private void createConsumerGroup(String streamKey) {
+        try {
+            stringRedisTemplate.execute((RedisCallback<Object>) connection -> connection.streamCommands().xGroupCreate(
+                    streamKey.getBytes(StandardCharsets.UTF_8), SECKILL_STREAM_GROUP, ReadOffset.from("0"), true));
+        } catch (Exception e) {
+            // 消费者组已经存在
+            if (!StrUtil.contains(ExceptionUtil.getRootCauseMessage(e), "BUSYGROUP")) {
+                throw e;
+            }
+        }
+    }
+
+    // 消费者名称要在重启后保持不变，才能在启动时接着处理自己的pending-list
+    private static String defaultConsumerName() {
+        try {
+            return InetAddress.getLocalHost().getHostName();
+        } catch (UnknownHostException e) {
+            return UUID.randomUUID().toString(true);
+        }
+    }
+
+    // 批量保存订单，返回保存失败的订单
+    //  整批在一个事务里：每个优惠券扣减一次库存，所有订单一条insert；批量失败时改为逐条处理，找出真正有问题的订单
+    private List<VoucherOrder> handleOrders(List<VoucherOrder> orders) {
+        long begin = System.nanoTime();
+        try {
+            proxy.createOrders(orders);
+            orderMetrics.batch(orders, System.nanoTime() - begin);
+            afterPersisted(orders);
+            return Collections.emptyList();
+        } catch (Exception e) {
+            orderMetrics.fallback();
+            log.warn("批量保存订单失败，改为逐条处理，size={}，原因：{}", orders.size(), ExceptionUtil.getRootCauseMessage(e));
+        }
+
+        List<VoucherOrder> persisted = new ArrayList<>();
+        List<VoucherOrder> failed = new ArrayList<>();
+        for (VoucherOrder order : orders) {
+            try {
+                // 同一个用户的订单只会在同一个分区线程里处理，一人一单由lua脚本保证，不需要再加分布式锁
+                proxy.createOrder(order);
+                persisted.add(order);
+            } catch (DuplicateKeyException e) {
+                // 订单已经入库了（比如stream消息重复投递）
+                persisted.add(order);
+            } catch (Exception e) {
+                log.error("订单处理失败，orderId={}", order.getId(), e);
+                failed.add(order);
             }
         }
+        orderMetrics.persisted(persisted);
+        orderMetrics.failed(failed.size());
+        afterPersisted(persisted);
+        return failed;
+    }
+
+    // 订单入库后更新状态，并加入超时取消的延迟队列
+    //  写延迟队列失败时订单不会被自动取消，只记录日志；stream模式下消息重复投递时会再写一次
+    private void afterPersisted(List<VoucherOrder> orders) {
+        updateStatus(orders, STATUS_PERSISTED);
+        if (payTimeoutMinutes <= 0 || orders.isEmpty()) {
+            return;
+        }
+        Map<String, Long> deadlines = new HashMap<>();
+        for (VoucherOrder order : orders) {
+            LocalDateTime createTime = order.getCreateTime() == null ? LocalDateTime.now() : order.getCreateTime();
+            long deadline = createTime.plusMinutes(payTimeoutMinutes).atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+            deadlines.put(order.getId().toString(), deadline);
+        }
+        try {
+            timeoutQueue.addAll(deadlines);
+        } catch (Exception e) {
+            log.error("订单加入超时取消队列失败，orderIds={}", deadlines.keySet(), e);
+        }
+    }
+
+    // 取消超时未支付的订单，每次领取一批，领满了说明还有积压，继续处理
+    private void cancelTimeoutOrders() {
+        try {
+            List<String> ids;
+            do {
+                ids = timeoutQueue.claim(System.currentTimeMillis(), batchSize, TimeUnit.SECONDS.toMillis(timeoutProcessSeconds));
+                if (ids.isEmpty()) {
+                    return;
+                }
+                // 1. 数据库中取消订单、还回库存
+                List<Long> orderIds = ids.stream().map(Long::valueOf).collect(Collectors.toList());
+                List<VoucherOrder> cancelled = proxy.cancelOrders(orderIds);
+
+                // 2. 还回redis中的库存，把用户从下单集合中移除，这样用户可以重新抢购
+                restoreSeckill(cancelled);
+
+                // 3. 处理完才从延迟队列中删除，中途失败的订单会在超时后被重新领取
+                timeoutQueue.remove(ids);
+            } while (ids.size() == batchSize);
+        } catch (Exception e) {
+            // 不能把异常抛出去，否则定时任务不会再执行
+            log.error("取消超时订单失败", e);
+        }
+    }
+
+    // 每个订单只在数据库取消成功的那一次回滚redis，不会重复回滚
+    //  回滚失败的订单只是redis里少了库存（少卖不会超卖），不再重试，避免回滚掉用户重新抢到的下单记录
+    private void restoreSeckill(List<VoucherOrder> cancelled) {
+        if (cancelled.isEmpty()) {
+            return;
+        }
+        Set<Long> restocked = new HashSet<>();
+        for (VoucherOrder order : cancelled) {
+            try {
+                int shards = metaCache.get(order.getVoucherId()).getShards();
+                int home = SeckillKeys.shardOf(order.getUserId(), shards);
+                Long result = stringRedisTemplate.execute(SeckillRollbackScript,
+                        Arrays.asList(SeckillKeys.stockKey(order.getVoucherId(), shards, home),
+                                SeckillKeys.orderKey(order.getVoucherId(), shards, home),
+                                SeckillKeys.buyerKey(order.getVoucherId(), shards, home)),
+                        order.getUserId().toString());
+                if (result != null && result == 1) {
+                    restocked.add(order.getVoucherId());
+                }
+            } catch (Exception e) {
+                log.error("订单已取消，还回redis库存失败，orderId={}", order.getId(), e);
+            }
+        }
+        // 有库存了，清除所有节点上的售罄标记
+        for (Long voucherId : restocked) {
+            soldOutRegistry.clear(voucherId);
+        }
+        updateStatus(cancelled, STATUS_CANCELLED);
+    }
+
+    // 批量更新订单状态，一次pipeline写完，状态只是给客户端轮询用的，写失败不影响订单本身
+    //  stream模式下排队中的状态在lua脚本之后才写，消费者可能已经写了已入库，排队中不能覆盖别的状态
+    private void updateStatus(List<VoucherOrder> orders, String status) {
+        if (orders.isEmpty()) {
+            return;
+        }
+        try {
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                for (VoucherOrder order : orders) {
+                    byte[] key = (ORDER_STATUS_KEY + order.getId()).getBytes(StandardCharsets.UTF_8);
+                    Map<byte[], byte[]> fields = new HashMap<>();
+                    if (STATUS_QUEUED.equals(status)) {
+                        connection.hashCommands().hSetNX(key, "status".getBytes(StandardCharsets.UTF_8), status.getBytes(StandardCharsets.UTF_8));
+                    } else {
+                        fields.put("status".getBytes(StandardCharsets.UTF_8), status.getBytes(StandardCharsets.UTF_8));
+                    }
+                    fields.put("userId".getBytes(StandardCharsets.UTF_8), order.getUserId().toString().getBytes(StandardCharsets.UTF_8));
+                    fields.put("voucherId".getBytes(StandardCharsets.UTF_8), order.getVoucherId().toString().getBytes(StandardCharsets.UTF_8));
+                    connection.hashCommands().hMSet(key, fields);
+                    connection.keyCommands().expire(key, statusTtlSeconds);
+                }
+                return null;
+            });
+        } catch (Exception e) {
+            log.warn("更新订单状态失败，status={}，size={}", status, orders.size(), e);
+        }
+    }
+
+    @Override
+    public Result queryOrderStatus(Long orderId) {
+        Long userId = UserHolder.getUser().getId();
+        Map<String, Object> status = new HashMap<>();
+        status.put("orderId", orderId);
+
+        // 1. 先查redis中的订单状态
+        String key = ORDER_STATUS_KEY + orderId;
+        Map<Object, Object> entry = stringRedisTemplate.opsForHash().entries(key);
+        if (!entry.isEmpty()) {
+            if (STATUS_UNKNOWN.equals(entry.get("status")) || !userId.toString().equals(entry.get("userId"))) {
+                return Result.fail("订单不存在");
+            }
+            status.put("status", entry.get("status"));
+            status.put("voucherId", Long.valueOf(entry.get("voucherId").toString()));
+            return Result.ok(status);
+        }
+
+        // 2. 状态已经过期，一般是订单早就处理完了，查数据库
+        VoucherOrder order = getById(orderId);
+        if (order == null) {
+            // 积压严重时，排队中的订单状态可能先过期了，不能当成不存在
+            if (pendingOrders() > 0) {
+                status.put("status", STATUS_QUEUED);
+                return Result.ok(status);
+            }
+            // 不存在的订单id也缓存一下，避免反复查询数据库
+            stringRedisTemplate.opsForHash().put(key, "status", STATUS_UNKNOWN);
+            stringRedisTemplate.expire(key, ORDER_STATUS_UNKNOWN_TTL, TimeUnit.SECONDS);
+            return Result.fail("订单不存在");
+        }
+        // 别人的订单：不能写入任何标记，否则会影响订单主人的查询
+        if (!userId.equals(order.getUserId())) {
+            return Result.fail("订单不存在");
+        }
+        status.put("status", order.getStatus() == ORDER_CANCELLED ? STATUS_CANCELLED : STATUS_PERSISTED);
+        status.put("voucherId", order.getVoucherId());
+        status.put("orderStatus", order.getStatus());
+        return Result.ok(status);
     }
 
     @Override
     public Result seckill(Long voucherId) {
-        // 1. 执行lua脚本
+        // 还没启动完成或者正在停机，不再接收订单
+        if (!running) {
+            orderMetrics.rejected("notRunning");
+            return Result.fail(seckillFailMessage(6));
+        }
+
+        // 本节点已经知道卖完了，不用再访问redis
+        if (soldOutRegistry.isSoldOut(voucherId)) {
+            return Result.fail("库存不足");
+        }
+
+        // 用本地缓存的元数据判断优惠券是否存在、是否在秒杀时间内，lua脚本里还会再判断一次
+        SeckillVoucherMetaCache.Meta meta = metaCache.get(voucherId);
+        long now = System.currentTimeMillis();
+        if (!meta.isExists()) {
+            return Result.fail(seckillFailMessage(3));
+        }
+        if (meta.notStarted(now)) {
+            return Result.fail(seckillFailMessage(4));
+        }
+        if (meta.ended(now)) {
+            return Result.fail(seckillFailMessage(5));
+        }
+
+        // 本节点的令牌桶，超过秒杀QPS上限的请求直接返回繁忙
+        if (localLimiter != null && !localLimiter.tryAcquire()) {
+            orderMetrics.rejected("localLimit");
+            return Result.fail(seckillFailMessage(6));
+        }
+
         Long userId = UserHolder.getUser().getId();
-        Long result = stringRedisTemplate.execute(SeckillRedisScript, Collections.emptyList(), voucherId.toString(), userId.toString());
+        int partition = partitionOf(userId);
+        int shards = meta.getShards();
+        int home = SeckillKeys.shardOf(userId, shards);
+        String streamKey = SeckillKeys.streamKey(voucherId, shards, home);
+        // 消费跟不上了，在扣库存之前就拒绝
+        if (backlogOf(partition, streamKey) >= highWatermark()) {
+            orderMetrics.rejected("backpressure");
+            return Result.fail(seckillFailMessage(8));
+        }
+
+        // stream模式下订单消息在lua脚本里和扣库存一起写入，订单id要提前生成，stream也要提前登记
+        Long orderId = null;
+        if (isStreamMode()) {
+            try {
+                registerStream(streamKey, voucherId);
+            } catch (Exception e) {
+                log.error("登记订单stream失败，stream={}", streamKey, e);
+                orderMetrics.rejected("streamError");
+                return Result.fail(seckillFailMessage(6));
+            }
+            orderId = redisWorker.nextId("order");
+        }
 
-        // 2. 判断是否异常
+        // 1. 执行lua脚本，库存分片时先在用户的主分片上扣减
+        List<String> keys = Arrays.asList(
+                SeckillKeys.stockKey(voucherId, shards, home),
+                SeckillKeys.orderKey(voucherId, shards, home),
+                SeckillKeys.timeKey(voucherId, shards, home),
+                SeckillKeys.limitKey(voucherId, shards, home),
+                SeckillKeys.userLimitKey(voucherId, shards, home, userId),
+                SeckillKeys.buyerKey(voucherId, shards, home),
+                streamKey);
+        // 开启了本地库存配额时，先在本节点扣库存，lua脚本里只判断限流和一人一单
+        //  其他节点可能还有配额，所以这里扣不到也不标记售罄
+        boolean quota = stockQuota.isEnabled();
+        if (quota && !stockQuota.tryAcquire(voucherId, shards)) {
+            return Result.fail(seckillFailMessage(1));
+        }
+        // 集群限流速率平均分到每个分片的令牌桶
+        String[] args = {voucherId.toString(), userId.toString(), quota ? "2" : "0",
+                String.valueOf(clusterQps / shards), String.valueOf(Math.max(1, clusterBurst / shards)),
+                String.valueOf(userMaxRequests), String.valueOf(userWindowMillis),
+                buyerStore, String.valueOf(metaCache.buyerExpireAt(meta)), orderId == null ? "" : orderId.toString(),
+                String.valueOf(buyerBitmapMaxId)};
+        Long result = stringRedisTemplate.execute(SeckillRedisScript, keys, (Object[]) args);
+        if (quota && result != 0) {
+            stockQuota.release(voucherId, shards);
+        }
+
+        // 主分片没有库存了，到其他分片去扣
+        if (result == 1 && shards > 1) {
+            result = seckillFromOtherShards(voucherId, shards, home, keys, args);
+        }
+
+        // 2. 判断是否异常，所有分片都没有库存时标记售罄
+        if (result == 1) {
+            soldOutRegistry.markSoldOut(voucherId);
+        }
+        if (result == 6) {
+            orderMetrics.rejected("clusterLimit");
+        } else if (result == 7) {
+            orderMetrics.rejected("userLimit");
+        }
         if(result != 0) {
-            return Result.fail(result.intValue() == 1? "库存不足" : "用户已下单过了");
+            return Result.fail(seckillFailMessage(result.intValue()));
         }
 
-        // 3. 保存到阻塞队列中
-        long orderId = redisWorker.nextId("order");
+        // 3. memory模式下抢到了才生成订单id，被拒绝的请求不消耗id，也不多一次访问redis
         VoucherOrder order = new VoucherOrder();
-        order.setId(orderId);
+        order.setId(orderId != null ? orderId : redisWorker.nextId("order"));
         order.setVoucherId(voucherId);
         order.setUserId(userId);
-        proxy = (IVoucherOrderService) AopContext.currentProxy();
-        queue.add(order);
+        order.setCreateTime(LocalDateTime.now());
+        // 订单状态：排队中，消费者入库后改为已入库，客户端据此轮询结果
+        //  状态key和库存不在同一个slot，不能放进lua脚本里；写失败只影响轮询，不影响下单
+        updateStatus(Collections.singletonList(order), STATUS_QUEUED);
+
+        // 4. stream模式下订单已经在lua脚本里写入stream了
+        if (isStreamMode()) {
+            return Result.ok(order.getId());
+        }
+
+        // 5. 开启了预写日志的话，先写日志再入队，写日志失败和队列满一样处理
+        if (journal != null) {
+            try {
+                journal.awaitDurable(journal.append(order), journalFsyncWaitMillis);
+            } catch (IOException e) {
+                log.error("写入订单日志失败，orderId={}", order.getId(), e);
+                rollbackSeckill(keys, order);
+                orderMetrics.rejected("journalError");
+                return Result.fail(seckillFailMessage(6));
+            }
+        }
+        // 队列满了不能抛异常，库存和下单记录要还回去，让用户稍后重试
+        if (!queues.get(partition).offer(order)) {
+            rollbackSeckill(keys, order);
+            if (journal != null) {
+                journal.cancel(order.getId());
+            }
+            orderMetrics.rejected("queueFull");
+            return Result.fail(seckillFailMessage(6));
+        }
+
+        // 6. 返回订单id
+        return Result.ok(order.getId());
+    }
+
+    // 还回库存和下单记录，再删除订单状态（两者不在同一个slot，分开执行）
+    private void rollbackSeckill(List<String> keys, VoucherOrder order) {
+        stringRedisTemplate.execute(SeckillRollbackScript,
+                Arrays.asList(keys.get(0), keys.get(1), keys.get(5)), order.getUserId().toString());
+        stringRedisTemplate.delete(ORDER_STATUS_KEY + order.getId());
+    }
+
+    // 分区积压到这个数量时拒绝新的秒杀请求
+    private long highWatermark() {
+        return (long) Math.max(1, partitionCapacity() * highWatermark);
+    }
 
-        // 4. 返回订单id
-        return Result.ok(orderId);
+    // 订单要进入的队列的积压数：memory模式下是用户所在分区的队列，stream模式下是优惠券分片的stream
+    //  stream长度每个stream最多STREAM_LENGTH_REFRESH_MILLIS查一次，不给每个请求多一次访问redis
+    private long backlogOf(int partition, String streamKey) {
+        if (!isStreamMode()) {
+            return queues.get(partition).size();
+        }
+        long now = System.currentTimeMillis();
+        long[] cached = streamLengths.get(streamKey);
+        if (cached == null || now - cached[0] > STREAM_LENGTH_REFRESH_MILLIS) {
+            Long size = stringRedisTemplate.opsForStream().size(streamKey);
+            cached = new long[]{now, size == null ? 0 : size};
+            streamLengths.put(streamKey, cached);
+        }
+        return cached[1];
+    }
+
+    // lua脚本的返回码：1库存不足、2重复下单、3秒杀券不存在、4尚未开始、5已经结束、6系统繁忙、7用户请求过于频繁；8订单积压（在lua脚本之前判断）
+    private static String seckillFailMessage(int code) {
+        switch (code) {
+            case 1:
+                return "库存不足";
+            case 2:
+                return "用户已下单过了";
+            case 3:
+                return "秒杀活动不存在";
+            case 4:
+                return "秒杀尚未开始";
+            case 5:
+                return "秒杀已经结束";
+            case 6:
+            case 8:
+                return "系统繁忙，请稍后重试";
+            case 7:
+                return "请求过于频繁，请稍后重试";
+            default:
+                return "秒杀失败";
+        }
+    }
+
+    // 依次尝试其他分片：先扣到一个库存，再回到主分片判断一人一单并记录，重复下单的话把库存还回去
+    //  每一步都只操作同一个slot的key，兼容Redis Cluster；两步之间宕机最多少卖一个，不会超卖
+    private Long seckillFromOtherShards(Long voucherId, int shards, int home, List<String> keys, String[] args) {
+        for (int i = 1; i < shards; i++) {
+            String stockKey = SeckillKeys.stockKey(voucherId, shards, (home + i) % shards);
+            Long taken = stringRedisTemplate.execute(SeckillTakeScript, Collections.singletonList(stockKey));
+            if (taken == null || taken == 0) {
+                continue;
+            }
+            args[2] = "1";
+            Long result = stringRedisTemplate.execute(SeckillRedisScript, keys, (Object[]) args);
+            if (result != 0) {
+                stringRedisTemplate.opsForValue().increment(stockKey);
+            }
+            return result;
+        }
+        return 1L;
     }
 
     @Transactional
@@ -145,15 +1151,115 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
                 .gt("stock", 0) // 利用CAS机制，防止并发问题💥
                 .setSql("stock = stock - 1")
                 .update();
+        // 扣减失败要抛出去，调用方才会把订单当作失败处理，而不是标记为已入库
         if(!isDeduct) {
-            log.error("库存不足！");
-            return;
+            throw new IllegalStateException("库存不足，voucherId=" + order.getVoucherId());
         }
 
         // 保存订单到数据库
         save(order);
     }
 
+    @Transactional
+    public void createOrders(List<VoucherOrder> orders) {
+        // 1. 按优惠券分组，每个优惠券只扣减一次库存（按id排序加行锁，避免多个事务互相死锁）
+        Map<Long, Long> counts = orders.stream()
+                .collect(Collectors.groupingBy(VoucherOrder::getVoucherId, TreeMap::new, Collectors.counting()));
+        for (Map.Entry<Long, Long> entry : counts.entrySet()) {
+            boolean isDeduct = seckillVoucherService.update()
+                    .eq("voucher_id", entry.getKey())
+                    .ge("stock", entry.getValue())
+                    .setSql("stock = stock - " + entry.getValue())
+                    .update();
+            // 库存不够扣整批，回滚后由逐条处理决定哪些订单能成功
+            if(!isDeduct) {
+                throw new IllegalStateException("库存不足，voucherId=" + entry.getKey());
+            }
+        }
+
+        // 2. 一条insert保存所有订单
+        baseMapper.insertBatch(orders);
+    }
+
+    // 取消未支付的订单并还回数据库库存，只返回这次调用从未支付改成已取消的订单
+    //  之前已经取消过的订单不再返回：用户可能已经重新抢到，再回滚一次会把新的下单记录删掉、多还库存
+    @Transactional
+    public List<VoucherOrder> cancelOrders(List<Long> orderIds) {
+        List<VoucherOrder> orders = query().in("id", orderIds).eq("status", ORDER_UNPAID).list();
+
+        // 1. 逐条把未支付改成已取消（CAS，同时支付成功的订单不会被取消）
+        List<VoucherOrder> cancelled = new ArrayList<>(orders.size());
+        Map<Long, Long> counts = new TreeMap<>();
+        for (VoucherOrder order : orders) {
+            boolean isCancel = update()
+                    .eq("id", order.getId())
+                    .eq("status", ORDER_UNPAID)
+                    .set("status", ORDER_CANCELLED)
+                    .update();
+            if (!isCancel) {
+                continue;
+            }
+            order.setStatus(ORDER_CANCELLED);
+            counts.merge(order.getVoucherId(), 1L, Long::sum);
+            cancelled.add(order);
+        }
+
+        // 2. 每个优惠券还一次库存（按id排序，和下单时的加锁顺序一致）
+        for (Map.Entry<Long, Long> entry : counts.entrySet()) {
+            seckillVoucherService.update()
+                    .eq("voucher_id", entry.getKey())
+                    .setSql("stock = stock + " + entry.getValue())
+                    .update();
+        }
+        orderMetrics.cancelled(counts.values().stream().mapToInt(Long::intValue).sum());
+        return cancelled;
+    }
+
+    @Override
+    public Map<String, Object> queryPipelineMetrics() {
+        Map<String, Object> metrics = new HashMap<>(orderMetrics.snapshot());
+        metrics.put("queueMode", queueMode);
+        metrics.put("state", running ? "running" : draining ? "draining" : "stopped");
+        metrics.put("soldOut", soldOutRegistry.stats());
+        if (stockQuota.isEnabled()) {
+            metrics.put("stockQuota", stockQuota.stats());
+        }
+        // stream中ACK过的消息会被删除，所以长度就是还没处理完的订单数，第一条就是最早的订单
+        //  stream模式下按消费线程汇总它负责的所有stream
+        List<Long> sizes = new ArrayList<>(Collections.nCopies(partitions, 0L));
+        long oldest = Long.MAX_VALUE;
+        if (isStreamMode()) {
+            for (String streamKey : allStreams().keySet()) {
+                Long size = stringRedisTemplate.opsForStream().size(streamKey);
+                int partition = consumerOf(streamKey);
+                sizes.set(partition, sizes.get(partition) + (size == null ? 0 : size));
+                List<MapRecord<String, Object, Object>> first = stringRedisTemplate.opsForStream()
+                        .range(streamKey, Range.unbounded(), RedisZSetCommands.Limit.limit().count(1));
+                if (first != null && !first.isEmpty()) {
+                    oldest = Math.min(oldest, first.get(0).getId().getTimestamp());
+                }
+            }
+        } else {
+            for (int i = 0; i < partitions; i++) {
+                sizes.set(i, (long) queues.get(i).size());
+                VoucherOrder first = queues.get(i).peek();
+                if (first != null && first.getCreateTime() != null) {
+                    oldest = Math.min(oldest, first.getCreateTime().atZone(ZoneId.systemDefault()).toInstant().toEpochMilli());
+                }
+            }
+        }
+        metrics.put("partitions", partitions);
+        metrics.put("partitionQueueSizes", sizes);
+        metrics.put("queueSize", sizes.stream().mapToLong(Long::longValue).sum());
+        metrics.put("highWatermark", highWatermark());
+        metrics.put("oldestOrderAgeMs", oldest == Long.MAX_VALUE ? 0 : Math.max(0, System.currentTimeMillis() - oldest));
+        metrics.put("timeoutQueueSize", timeoutQueue.size());
+        if (journal != null) {
+            metrics.put("journal", journal.stats());
+        }
+        return metrics;
+    }
+
 //    @Override
 //    public Result seckill(Long voucherId) {
 //        // 1. 根据id，获取优惠券信息
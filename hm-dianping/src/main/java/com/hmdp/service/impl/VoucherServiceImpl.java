@@ -1,18 +1,33 @@
 package com.hmdp.service.impl;
 
+import cn.hutool.core.util.StrUtil;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.hmdp.annotation.HmdpCached;
+import com.hmdp.annotation.HmdpEvict;
 import com.hmdp.dto.Result;
+import com.hmdp.dto.ShopVouchersDTO;
 import com.hmdp.entity.Voucher;
 import com.hmdp.mapper.VoucherMapper;
 import com.hmdp.entity.SeckillVoucher;
 import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherService;
 import com.hmdp.utils.RedisConstants;
+import com.hmdp.utils.SeckillKeys;
+import com.hmdp.utils.SeckillSoldOutRegistry;
+import com.hmdp.utils.SeckillVoucherMetaCache;
+import org.springframework.aop.framework.AopContext;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.Cursor;
+import org.springframework.data.redis.core.ScanOptions;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
 import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 /**
@@ -32,16 +47,91 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
     @Resource
     private StringRedisTemplate stringRedisTemplate;
 
+    @Resource
+    private SeckillSoldOutRegistry soldOutRegistry;
+
+    @Resource
+    private SeckillVoucherMetaCache metaCache;
+
+    private static final int MIGRATE_BATCH_SIZE = 1000;
+
+    private static final int MIGRATE_ARG_OFFSET = 2; // 迁移脚本的参数：过期时间点、位图最大userId，之后才是userId
+
+    @Value("${hmdp.seckill.buyer-bitmap-max-id:100000000}")
+    private long buyerBitmapMaxId;
+
+    private final static DefaultRedisScript<Long> MIGRATE_BUYERS_SCRIPT;
+
+    static {
+        MIGRATE_BUYERS_SCRIPT = new DefaultRedisScript<>();
+        MIGRATE_BUYERS_SCRIPT.setLocation(new ClassPathResource("seckill_migrate_buyers.lua"));
+        MIGRATE_BUYERS_SCRIPT.setResultType(Long.class);
+    }
+
     @Override
     public Result queryVoucherOfShop(Long shopId) {
-        // 查询优惠券信息
-        List<Voucher> vouchers = getBaseMapper().queryVoucherOfShop(shopId);
+        // 查询优惠券信息（通过代理对象调用，才能走缓存）
+        IVoucherService proxy = (IVoucherService) AopContext.currentProxy();
+        List<Voucher> vouchers = proxy.listVoucherOfShop(shopId).getVouchers();
+        // 缓存里没有秒杀库存，从redis读取最新的库存
+        fillSeckillStock(vouchers);
         // 返回结果
         return Result.ok(vouchers);
     }
 
+    @Override
+    @HmdpCached(prefix = RedisConstants.CACHE_SHOP_VOUCHER_KEY, key = "#shopId", ttl = 5L, local = false)
+    public ShopVouchersDTO listVoucherOfShop(Long shopId) {
+        List<Voucher> vouchers = getBaseMapper().queryVoucherOfShop(shopId);
+        vouchers.forEach(voucher -> voucher.setStock(null));
+        ShopVouchersDTO dto = new ShopVouchersDTO();
+        dto.setVouchers(vouchers);
+        return dto;
+    }
+
+    // 秒杀券的库存是所有分片之和，一次批量读取；节点预取到本地的配额不在redis里，显示的库存会略少一些
+    private void fillSeckillStock(List<Voucher> vouchers) {
+        List<String> keys = new ArrayList<>();
+        List<Voucher> seckillVouchers = new ArrayList<>();
+        List<Integer> shardCounts = new ArrayList<>();
+        for (Voucher voucher : vouchers) {
+            if (voucher.getBeginTime() == null) {
+                continue;
+            }
+            int shards = metaCache.get(voucher.getId()).getShards();
+            for (int i = 0; i < shards; i++) {
+                keys.add(SeckillKeys.stockKey(voucher.getId(), shards, i));
+            }
+            seckillVouchers.add(voucher);
+            shardCounts.add(shards);
+        }
+        if (keys.isEmpty()) {
+            return;
+        }
+        List<String> stocks = stringRedisTemplate.opsForValue().multiGet(keys);
+        if (stocks == null) {
+            return;
+        }
+        int index = 0;
+        for (int i = 0; i < seckillVouchers.size(); i++) {
+            int stock = 0;
+            for (int j = 0; j < shardCounts.get(i); j++) {
+                String value = stocks.get(index++);
+                stock += StrUtil.isBlank(value) ? 0 : Math.max(0, Integer.parseInt(value));
+            }
+            seckillVouchers.get(i).setStock(stock);
+        }
+    }
+
+    @Override
+    @HmdpEvict(prefix = RedisConstants.CACHE_SHOP_VOUCHER_KEY, key = "#entity.shopId")
+    public boolean save(Voucher entity) {
+        return super.save(entity);
+    }
+
     @Override
     @Transactional
+    @HmdpEvict(prefix = RedisConstants.CACHE_SHOP_VOUCHER_KEY, key = "#voucher.shopId")
     public void addSeckillVoucher(Voucher voucher) {
         // 保存优惠券
         save(voucher);
@@ -53,7 +143,50 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
         seckillVoucher.setEndTime(voucher.getEndTime());
         seckillVoucherService.save(seckillVoucher);
 
-        // 保存到redis中
-        stringRedisTemplate.opsForValue().set(RedisConstants.SECKILL_STOCK_KEY + voucher.getId(), voucher.getStock().toString());
+        // 保存到redis中，热门优惠券可以把库存拆到多个分片上
+        int shards = voucher.getStockShards() == null ? 1 : Math.max(1, voucher.getStockShards());
+        int[] stocks = SeckillKeys.split(voucher.getStock(), shards);
+        for (int i = 0; i < shards; i++) {
+            stringRedisTemplate.opsForValue().set(SeckillKeys.stockKey(voucher.getId(), shards, i), String.valueOf(stocks[i]));
+        }
+        // 分片数和秒杀时间，lua脚本根据时间窗口拒绝过早或过晚的请求
+        metaCache.save(voucher.getId(), shards, voucher.getBeginTime(), voucher.getEndTime());
+        soldOutRegistry.clear(voucher.getId());
+    }
+
+    @Override
+    public Result migrateSeckillBuyers(Long voucherId) {
+        SeckillVoucherMetaCache.Meta meta = metaCache.get(voucherId);
+        if (!meta.isExists()) {
+            return Result.fail("秒杀活动不存在");
+        }
+        // 逐个分片扫描旧的set，每批用lua脚本原子地移到位图里，迁移期间可以正常秒杀
+        //  userId超出位图上限的会留在set里，lua脚本两边都会判断
+        long expireAt = metaCache.buyerExpireAt(meta);
+        long moved = 0;
+        for (int i = 0; i < meta.getShards(); i++) {
+            List<String> keys = Arrays.asList(SeckillKeys.orderKey(voucherId, meta.getShards(), i), SeckillKeys.buyerKey(voucherId, meta.getShards(), i));
+            List<String> args = new ArrayList<>(MIGRATE_BATCH_SIZE + MIGRATE_ARG_OFFSET);
+            args.add(String.valueOf(expireAt));
+            args.add(String.valueOf(buyerBitmapMaxId));
+            try (Cursor<String> cursor = stringRedisTemplate.opsForSet().scan(keys.get(0), ScanOptions.scanOptions().count(MIGRATE_BATCH_SIZE).build())) {
+                while (cursor.hasNext()) {
+                    args.add(cursor.next());
+                    if (args.size() >= MIGRATE_BATCH_SIZE + MIGRATE_ARG_OFFSET) {
+                        moved += migrateBuyers(keys, args);
+                    }
+                }
+            }
+            if (args.size() > MIGRATE_ARG_OFFSET) {
+                moved += migrateBuyers(keys, args);
+            }
+        }
+        return Result.ok(moved);
+    }
+
+    private long migrateBuyers(List<String> keys, List<String> args) {
+        Long moved = stringRedisTemplate.execute(MIGRATE_BUYERS_SCRIPT, keys, args.toArray());
+        args.subList(MIGRATE_ARG_OFFSET, args.size()).clear();
+        return moved == null ? 0 : moved;
     }
 }
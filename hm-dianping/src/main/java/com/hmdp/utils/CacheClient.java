@@ -1,18 +1,30 @@
 package com.hmdp.utils;
 
-import cn.hutool.core.util.BooleanUtil;
-import cn.hutool.json.JSONObject;
-import cn.hutool.json.JSONUtil;
-import com.hmdp.entity.Shop;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.RedisStringCommands;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.types.Expiration;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
 import org.springframework.stereotype.Component;
-import org.springframework.util.StringUtils;
 
+import javax.annotation.PostConstruct;
 import java.time.LocalDateTime;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.time.ZoneId;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
 import java.util.function.Function;
 
@@ -23,19 +35,133 @@ public class CacheClient {
     @Autowired
     private StringRedisTemplate stringRedisTemplate;
 
-    private ExecutorService executorService = Executors.newFixedThreadPool(10);
+    @Autowired
+    private RedisMessageListenerContainer listenerContainer;
+
+    @Autowired
+    private CacheExpirePolicy expirePolicy; // 所有写入路径的过期时间都由它计算（带随机抖动）
+
+    @Autowired
+    private CacheRefreshScheduler refreshScheduler; // 逻辑过期、提前刷新的后台重建
+
+    @Autowired
+    private CacheMetrics metrics; // 按key前缀统计的命中率、耗时
+
+    @Value("${hmdp.cache.local.enabled:false}")
+    private boolean localCacheEnabled;
+
+    @Value("${hmdp.cache.local.maximum-size:1000}")
+    private int localCacheMaximumSize;
+
+    @Value("${hmdp.cache.local.ttl-seconds:60}")
+    private long localCacheTtlSeconds;
+
+    private LocalCache localCache; // 一级缓存，未开启时为null
+
+    private final SingleFlight singleFlight = new SingleFlight(); // 缓存未命中时合并同一个key的数据库查询
+
+    @Value("${hmdp.cache.single-flight.timeout-millis:3000}")
+    private long singleFlightTimeoutMillis;
+
+    @Value("${hmdp.cache.early-refresh.beta:1.0}")
+    private double earlyRefreshBeta; // 越大越提前刷新
+
+    @Value("${hmdp.cache.early-refresh.max-stale-seconds:60}")
+    private long earlyRefreshMaxStaleSeconds; // 逻辑过期之后最多还能返回多久的旧数据
+
+    private final Map<String, IdBloomFilter> bloomFilters = new ConcurrentHashMap<>(); // key前缀 -> 布隆过滤器
+
+    @Value("${hmdp.cache.codec:hutool}")
+    private String codec;
+
+    private CacheValueSerializer valueSerializer;
 
-    // 方法1：将任意Java对象序列化为JSON，并存储到String类型的Key中，并可以设置TTL过期时间
+    @PostConstruct
+    private void init() {
+        valueSerializer = new CacheValueSerializer(codec);
+
+        // 订阅布隆过滤器新增频道，消息格式为 “key前缀|id”
+        listenerContainer.addMessageListener((message, pattern) -> {
+            String body = stringRedisTemplate.getStringSerializer().deserialize(message.getBody());
+            int index = body == null ? -1 : body.lastIndexOf('|');
+            if (index < 0) {
+                return;
+            }
+            IdBloomFilter bloomFilter = bloomFilters.get(body.substring(0, index));
+            if (bloomFilter != null) {
+                bloomFilter.add(body.substring(index + 1));
+            }
+        }, new ChannelTopic(RedisConstants.CACHE_BLOOM_ADD_CHANNEL));
+
+        if (!localCacheEnabled) {
+            return;
+        }
+        localCache = new LocalCache(localCacheMaximumSize, TimeUnit.SECONDS.toMillis(localCacheTtlSeconds));
+
+        // 订阅失效频道，任意节点更新数据后，所有节点都删除自己的一级缓存
+        listenerContainer.addMessageListener((message, pattern) -> {
+            String key = stringRedisTemplate.getStringSerializer().deserialize(message.getBody());
+            if (key != null) {
+                localCache.invalidate(key);
+            }
+        }, new ChannelTopic(RedisConstants.CACHE_INVALIDATE_CHANNEL));
+    }
+
+    // 方法1：将任意Java对象序列化（格式由 hmdp.cache.codec 决定），并存储到String类型的Key中，并可以设置TTL过期时间
     public void set(String key, Object value, Long time, TimeUnit unit) {
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(value), time, unit);
+        setRaw(key, encode(metrics.ofKey(key), value), expirePolicy.ttlMillis(key, time, unit), TimeUnit.MILLISECONDS);
     }
 
-    // 方法2：将任意Java对象序列化为JSON，并存储在String类型的Key中，并可以设置逻辑过期时间，用于处理缓存击穿问题
+    // 方法2：将任意Java对象序列化，并存储在String类型的Key中，并可以设置逻辑过期时间，用于处理缓存击穿问题
     public void setWithLogicExpireTime(String key, Object value, Long time, TimeUnit unit) {
-        RedisData redisData = new RedisData();
-        redisData.setData(value);
-        redisData.setExpireTime(LocalDateTime.now().plusSeconds(unit.toSeconds(time)));
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(redisData));
+        LocalDateTime expireTime = LocalDateTime.now().plus(expirePolicy.ttlMillis(key, time, unit), ChronoUnit.MILLIS);
+        setRaw(key, encodeLogical(metrics.ofKey(key), value, expireTime, null), null, null);
+    }
+
+    // 删除缓存：先删redis，再广播给所有节点删除一级缓存
+    public void delete(String key) {
+        if (localCache != null) {
+            localCache.invalidate(key);
+        }
+        stringRedisTemplate.delete(key);
+        stringRedisTemplate.convertAndSend(RedisConstants.CACHE_INVALIDATE_CHANNEL, key);
+    }
+
+    // 按key前缀统计的命中、未命中、加载耗时、序列化耗时
+    public Map<String, Object> getMetrics() {
+        return metrics.snapshot();
+    }
+
+    // 一级缓存的命中、未命中、淘汰次数
+    public Map<String, Object> getLocalCacheStats() {
+        return localCache == null ? Collections.emptyMap() : localCache.stats();
+    }
+
+    // 请求合并的统计：真正加载次数、被合并的等待次数、超时次数
+    public Map<String, Object> getSingleFlightStats() {
+        return singleFlight.stats();
+    }
+
+    // 为某个key前缀注册布隆过滤器，查询时先判断id是否可能存在
+    public void registerBloomFilter(String prefix_key, IdBloomFilter bloomFilter) {
+        bloomFilters.put(prefix_key, bloomFilter);
+    }
+
+    // 新增数据后调用，把id加入本节点的布隆过滤器，并广播给其他节点
+    public void addToBloomFilter(String prefix_key, Object id) {
+        IdBloomFilter bloomFilter = bloomFilters.get(prefix_key);
+        if (bloomFilter == null) {
+            return;
+        }
+        bloomFilter.add(id);
+        stringRedisTemplate.convertAndSend(RedisConstants.CACHE_BLOOM_ADD_CHANNEL, prefix_key + "|" + id);
+    }
+
+    // 所有布隆过滤器的误判率、内存占用
+    public Map<String, Object> getBloomFilterStats() {
+        Map<String, Object> stats = new HashMap<>();
+        bloomFilters.forEach((prefix, bloomFilter) -> stats.put(prefix, bloomFilter.stats()));
+        return stats;
     }
 
     // 方法3：根据指定的Key查询缓存，并反序列化为指定类型，利用缓存空值的方式解决缓存穿透问题
@@ -45,51 +171,84 @@ public class CacheClient {
             Class<T> type,
             Function<ID, T> dbCallBack,
             Long time, TimeUnit unit) {
-        // 1. 从redis中查询缓存
+        return get(prefix_key, id, type, dbCallBack, time, unit, true, true);
+    }
+
+    // 方法3的通用版本
+    //  cacheNull：数据库中不存在时是否写入空值（防止缓存穿透）
+    //  useLocal：是否使用一级缓存，返回的对象如果会被调用方修改（比如填充当前用户的点赞状态），不能使用一级缓存
+    public <T, ID> T get(
+            String prefix_key,
+            ID id,
+            Class<T> type,
+            Function<ID, T> dbCallBack,
+            Long time, TimeUnit unit,
+            boolean cacheNull,
+            boolean useLocal) {
+        CacheMetrics.PrefixMetrics prefixMetrics = metrics.of(prefix_key);
+
+        // 0. 布隆过滤器判断id不存在，直接返回，不访问redis和数据库
+        IdBloomFilter bloomFilter = bloomFilters.get(prefix_key);
+        if (bloomFilter != null && !bloomFilter.mightContain(id)) {
+            prefixMetrics.bloomReject();
+            return null;
+        }
+
+        // 1. 先查一级缓存，命中的话不用访问redis，也不用反序列化
         String key = prefix_key + id;
-        String jsonStr = stringRedisTemplate.opsForValue().get(key);
+        if (useLocal && localCache != null) {
+            Object cached = localCache.get(key);
+            if (type.isInstance(cached)) {
+                prefixMetrics.localHit();
+                return type.cast(cached);
+            }
+        }
 
-        // 2. 存在缓存，并且有内容，说明是真的有信息，则直接返回对象
-        if (StringUtils.hasText(jsonStr)) {
+        // 2. 从redis中查询缓存
+        byte[] bytes = getRaw(key);
+
+        // 3. 存在缓存，并且有内容，说明是真的有信息，则直接返回对象（根据格式标记选择解码方式，兼容旧的JSON数据）
+        if (bytes != null && bytes.length > 0) {
             try {
-                // 先尝试直接转为对象
-                T bean;
-                if (jsonStr.trim().startsWith("{")) {
-                    JSONObject jsonObject = JSONUtil.parseObj(jsonStr);
-                    // 如果存在 data 字段，就取 data 部分
-                    if (jsonObject.containsKey("data")) {
-                        bean = JSONUtil.toBean(jsonObject.getJSONObject("data"), type);
-                    } else {
-                        bean = JSONUtil.toBean(jsonObject, type);
-                    }
-                } else {
-                    // 如果不是对象，而是字符串等，直接转
-                    bean = JSONUtil.toBean(jsonStr, type);
+                T bean = decode(prefixMetrics, bytes, type);
+                prefixMetrics.hit();
+                if (useLocal) {
+                    putLocal(key, bean);
                 }
                 return bean;
             } catch (Exception e) {
-                log.error("反序列化缓存失败，jsonStr={}", jsonStr, e);
+                log.error("反序列化缓存失败，key={}", key, e);
             }
         }
 
         // 存在缓存，但是没有内容，说明是空对象，是为了避免缓存穿透的，直接返回null
-        if(jsonStr != null) {
+        if(bytes != null && bytes.length == 0) {
+            prefixMetrics.nullHit();
             return null;
         }
 
-        // 3. 不存在，根据id查询数据库
-        T object = dbCallBack.apply(id);
+        // 4. 不存在，查询数据库（同一节点上同一个key的并发请求合并为一次查询，其他线程等待结果）
+        prefixMetrics.miss();
+        return singleFlight.execute(key, () -> {
+            T object = load(prefixMetrics, id, dbCallBack);
 
-        // 4. 不存在，不是直接返回错误，而是将该id写入redis，设为空对象，设置ttl，避免缓存穿透💥
-        if(object == null) {
-            stringRedisTemplate.opsForValue().set(key, "", RedisConstants.CACHE_NULL_TTL, TimeUnit.MINUTES);
-            return null;
-        }
+            // 5. 不存在，不是直接返回错误，而是将该id写入redis，设为空对象，设置ttl，避免缓存穿透💥
+            if(object == null) {
+                if (!cacheNull) {
+                    return null;
+                }
+                stringRedisTemplate.opsForValue().set(key, "", expirePolicy.nullTtlMillis(), TimeUnit.MILLISECONDS);
+                return null;
+            }
 
-        // 5. 存在，将数据写到redis中，设置过期时间（缓存更新策略）
-        this.set(key, JSONUtil.toJsonStr(object), time, unit);
+            // 6. 存在，将数据写到redis中，设置过期时间（缓存更新策略）
+            this.set(key, object, time, unit);
+            if (useLocal) {
+                putLocal(key, object);
+            }
 
-        return object;
+            return object;
+        }, singleFlightTimeoutMillis, TimeUnit.MILLISECONDS);
     }
 
     // 方法4：根据指定的Key查询缓存，并反序列化为指定类型，需要利用逻辑过期解决缓存击穿问题
@@ -101,20 +260,22 @@ public class CacheClient {
             Function<ID, T> dbCallBack,
             Long time, TimeUnit unit) {
         // 1. 从redis中查询缓存
+        CacheMetrics.PrefixMetrics prefixMetrics = metrics.of(prefix_key);
         String key = prefix_key + id;
-        String jsonStr = stringRedisTemplate.opsForValue().get(key);
+        byte[] bytes = getRaw(key);
 
         // 2. 判断缓存是否命中
-        if (!StringUtils.hasText(jsonStr)) {
+        if (bytes == null || bytes.length == 0) {
             // 3. 如果没命中，说明数据库中也没有数据，直接返回null
+            prefixMetrics.miss();
             return null;
         }
 
         // 4. 如果命中了，拿到数据，判断缓存逻辑过期时间
-        //   （因为Object通过redis序列化之后转化为字符串，但是反序列化之后不知道类型是什么，所以用通用类型JSONObject表示）
-        RedisData redisData = JSONUtil.toBean(jsonStr, RedisData.class);
-        JSONObject data = (JSONObject)redisData.getData();
-        T object = JSONUtil.toBean(data, type);
+        //   （逻辑过期时间放在定长的头部，数据直接解码为目标类型，只需要解析一次）
+        prefixMetrics.hit();
+        RedisData redisData = decodeLogical(prefixMetrics, bytes, type);
+        T object = type.cast(redisData.getData());
         LocalDateTime expireTime = redisData.getExpireTime();
 
         // 5. 如果没过期，直接返回数据
@@ -123,36 +284,252 @@ public class CacheClient {
         }
         log.info("过期了！");
 
-        // 6. 如果过期了，获取锁资源，判断锁资源是否拿到
-        String lock_key = RedisConstants.LOCK_SHOP_KEY + id;
-        boolean isLock = tryLock(lock_key);
-        if (isLock) {
+        // 6. 如果过期了，交给重建调度器：本节点同一个key只排队一次，拿到集群锁才重建，重建完成后才释放锁
+        String lock_key = RedisConstants.LOCK_CACHE_KEY + key;
+        boolean submitted = refreshScheduler.submit(lock_key, () -> {
+            T tmp = load(prefixMetrics, id, dbCallBack); // 查数据库拿到数据
+            this.setWithLogicExpireTime(key, tmp, time, unit);
+        });
+        if (submitted) {
+            prefixMetrics.refresh();
+        }
+
+        // 7. 返回数据
+        return object;
+    }
+
+    // 方法6：批量查询缓存，一次MGET查redis，未命中的id一次性交给bulkLoader查数据库，再用pipeline一次写回
+    //  1. 和方法3一样，数据库中不存在的id写入空值，防止缓存穿透
+    //  2. 不经过一级缓存：批量查询的对象通常还要填充用户信息等字段，不能和其他请求共享同一个对象
+    //  返回的Map按ids的顺序排列，不包含不存在的id
+    public <T, ID> Map<ID, T> getMany(
+            String prefix_key,
+            Collection<ID> ids,
+            Class<T> type,
+            Function<Collection<ID>, Map<ID, T>> bulkLoader,
+            Long time, TimeUnit unit) {
+        Map<ID, T> result = new HashMap<>();
+        if (ids == null || ids.isEmpty()) {
+            return result;
+        }
+
+        // 1. 去重，并用布隆过滤器过滤掉一定不存在的id
+        CacheMetrics.PrefixMetrics prefixMetrics = metrics.of(prefix_key);
+        IdBloomFilter bloomFilter = bloomFilters.get(prefix_key);
+        List<ID> candidates = new ArrayList<>(ids.size());
+        for (ID id : new LinkedHashSet<>(ids)) {
+            if (bloomFilter == null || bloomFilter.mightContain(id)) {
+                candidates.add(id);
+            } else {
+                prefixMetrics.bloomReject();
+            }
+        }
+        if (candidates.isEmpty()) {
+            return result;
+        }
+
+        // 2. 一次MGET查询redis
+        byte[][] rawKeys = new byte[candidates.size()][];
+        for (int i = 0; i < candidates.size(); i++) {
+            rawKeys[i] = stringRedisTemplate.getStringSerializer().serialize(prefix_key + candidates.get(i));
+        }
+        List<byte[]> values = stringRedisTemplate.execute((RedisCallback<List<byte[]>>) connection -> connection.stringCommands().mGet(rawKeys));
+
+        // 3. 命中的直接解码，空值跳过，未命中的记录下来
+        List<ID> missing = new ArrayList<>();
+        for (int i = 0; i < candidates.size(); i++) {
+            byte[] bytes = values == null ? null : values.get(i);
+            if (bytes == null) {
+                prefixMetrics.miss();
+                missing.add(candidates.get(i));
+                continue;
+            }
+            if (bytes.length == 0) {
+                prefixMetrics.nullHit();
+                continue;
+            }
             try {
-                // 7. 如果拿到锁资源，则创建新线程去重建缓存（这里用线程池）
-                executorService.submit(() -> {
-                    try {
-                        T tmp = dbCallBack.apply(id); // 查数据库拿到数据
-                        this.setWithLogicExpireTime(key, tmp, time, unit);
-                    } catch (Exception e) {
-                        throw new RuntimeException(e);
-                    }
-                });
-            } finally {
-                unlock(lock_key); // 解锁必须在主线程执行
+                result.put(candidates.get(i), decode(prefixMetrics, bytes, type));
+                prefixMetrics.hit();
+            } catch (Exception e) {
+                log.error("反序列化缓存失败，key={}", prefix_key + candidates.get(i), e);
+                missing.add(candidates.get(i));
+            }
+        }
+
+        // 4. 未命中的id一次性查询数据库，并用pipeline写回redis（不存在的写空值）
+        if (!missing.isEmpty()) {
+            long begin = System.nanoTime();
+            Map<ID, T> loaded = bulkLoader.apply(missing);
+            prefixMetrics.load(System.nanoTime() - begin);
+            Map<byte[], byte[]> found = new HashMap<>();
+            List<byte[]> absent = new ArrayList<>();
+            for (ID id : missing) {
+                byte[] rawKey = stringRedisTemplate.getStringSerializer().serialize(prefix_key + id);
+                T object = loaded == null ? null : loaded.get(id);
+                if (object == null) {
+                    absent.add(rawKey);
+                } else {
+                    found.put(rawKey, encode(prefixMetrics, object));
+                    result.put(id, object);
+                }
             }
+            // 每个key单独计算过期时间，避免同一批写入的key同时过期
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                found.forEach((rawKey, value) -> connection.stringCommands().set(
+                        rawKey, value,
+                        Expiration.milliseconds(expirePolicy.ttlMillis(prefix_key, time, unit)),
+                        RedisStringCommands.SetOption.upsert()));
+                absent.forEach(rawKey -> connection.stringCommands().set(
+                        rawKey, new byte[0],
+                        Expiration.milliseconds(expirePolicy.nullTtlMillis()),
+                        RedisStringCommands.SetOption.upsert()));
+                return null;
+            });
         }
 
-        // 8. 返回数据
+        // 5. 按传入的顺序返回
+        Map<ID, T> ordered = new LinkedHashMap<>();
+        for (ID id : candidates) {
+            T object = result.get(id);
+            if (object != null) {
+                ordered.put(id, object);
+            }
+        }
+        return ordered;
+    }
+
+    // 带耗时统计的查询数据库、序列化、反序列化
+    private <T, ID> T load(CacheMetrics.PrefixMetrics prefixMetrics, ID id, Function<ID, T> dbCallBack) {
+        long begin = System.nanoTime();
+        try {
+            return dbCallBack.apply(id);
+        } finally {
+            prefixMetrics.load(System.nanoTime() - begin);
+        }
+    }
+
+    private byte[] encode(CacheMetrics.PrefixMetrics prefixMetrics, Object value) {
+        long begin = System.nanoTime();
+        byte[] bytes = valueSerializer.serialize(value);
+        prefixMetrics.serialize(System.nanoTime() - begin);
+        return bytes;
+    }
+
+    private byte[] encodeLogical(CacheMetrics.PrefixMetrics prefixMetrics, Object value, LocalDateTime expireTime, Long delta) {
+        long begin = System.nanoTime();
+        byte[] bytes = valueSerializer.serializeLogical(value, expireTime, delta);
+        prefixMetrics.serialize(System.nanoTime() - begin);
+        return bytes;
+    }
+
+    private <T> T decode(CacheMetrics.PrefixMetrics prefixMetrics, byte[] bytes, Class<T> type) {
+        long begin = System.nanoTime();
+        T object = valueSerializer.deserialize(bytes, type);
+        prefixMetrics.deserialize(System.nanoTime() - begin);
         return object;
     }
 
-    private boolean tryLock(String key) {
-        // 为了防止线程崩了导致死锁，需要设置过期时间
-        Boolean flag = stringRedisTemplate.opsForValue().setIfAbsent(key, "1", RedisConstants.LOCK_SHOP_TTL, TimeUnit.SECONDS);
-        return BooleanUtil.isTrue(flag);
+    private <T> RedisData decodeLogical(CacheMetrics.PrefixMetrics prefixMetrics, byte[] bytes, Class<T> type) {
+        long begin = System.nanoTime();
+        RedisData redisData = valueSerializer.deserializeLogical(bytes, type);
+        prefixMetrics.deserialize(System.nanoTime() - begin);
+        return redisData;
     }
 
-    private void unlock(String key) {
-        stringRedisTemplate.delete(key);
+    // 按字节读写redis，二进制格式不能经过 StringRedisSerializer
+    private byte[] getRaw(String key) {
+        byte[] rawKey = stringRedisTemplate.getStringSerializer().serialize(key);
+        return stringRedisTemplate.execute((RedisCallback<byte[]>) connection -> connection.stringCommands().get(rawKey));
+    }
+
+    // time为null表示不设置过期时间
+    private void setRaw(String key, byte[] value, Long time, TimeUnit unit) {
+        byte[] rawKey = stringRedisTemplate.getStringSerializer().serialize(key);
+        Expiration expiration = time == null ? Expiration.persistent() : Expiration.from(time, unit);
+        stringRedisTemplate.execute((RedisCallback<Boolean>) connection ->
+                connection.stringCommands().set(rawKey, value, expiration, RedisStringCommands.SetOption.upsert()));
+    }
+
+    private void putLocal(String key, Object value) {
+        if (localCache != null) {
+            localCache.put(key, value);
+        }
+    }
+
+    // 方法5：根据指定的Key查询缓存，在逻辑过期之前按概率提前刷新（XFetch算法）
+    //  1. 重建越慢（delta越大）、越接近过期时间，刷新的概率越大，热点key会在过期前由某一个请求在后台刷新
+    //  2. 超过逻辑过期时间 max-stale-seconds 之后不再返回旧数据，而是同步查询数据库（硬性的过期上限）
+    public <T, ID> T getWithEarlyRefresh(
+            String prefix_key,
+            ID id,
+            Class<T> type,
+            Function<ID, T> dbCallBack,
+            Long time, TimeUnit unit) {
+        // 1. 从redis中查询缓存
+        CacheMetrics.PrefixMetrics prefixMetrics = metrics.of(prefix_key);
+        String key = prefix_key + id;
+        byte[] bytes = getRaw(key);
+
+        // 2. 命中空值，说明数据库中也没有，直接返回null
+        if (bytes != null && bytes.length == 0) {
+            prefixMetrics.nullHit();
+            return null;
+        }
+
+        // 3. 没命中，同步加载（合并同一个key的并发请求）
+        if (bytes == null) {
+            prefixMetrics.miss();
+            return singleFlight.execute(key, () -> rebuildWithDelta(key, id, dbCallBack, time, unit), singleFlightTimeoutMillis, TimeUnit.MILLISECONDS);
+        }
+
+        // 4. 命中，取出数据、逻辑过期时间、上次重建耗时
+        prefixMetrics.hit();
+        RedisData redisData = decodeLogical(prefixMetrics, bytes, type);
+        T object = type.cast(redisData.getData());
+        long expireAt = redisData.getExpireTime().atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        long delta = redisData.getDelta() == null ? 0L : redisData.getDelta();
+        long now = System.currentTimeMillis();
+
+        // 5. 超过硬性过期上限，旧数据不能再用了，同步重建
+        if (now >= expireAt + TimeUnit.SECONDS.toMillis(earlyRefreshMaxStaleSeconds)) {
+            return singleFlight.execute(key, () -> rebuildWithDelta(key, id, dbCallBack, time, unit), singleFlightTimeoutMillis, TimeUnit.MILLISECONDS);
+        }
+
+        // 6. now - delta * beta * ln(random) >= expireAt 时提前刷新，random∈(0,1]，所以ln(random) <= 0
+        double random = 1D - ThreadLocalRandom.current().nextDouble();
+        if (now - delta * earlyRefreshBeta * Math.log(random) >= expireAt
+                && refreshScheduler.submit(RedisConstants.LOCK_CACHE_KEY + key, () -> rebuildWithDelta(key, id, dbCallBack, time, unit))) {
+            // 交给重建调度器后台刷新，本节点同一个key只提交一次，集群内只有拿到锁的节点刷新
+            prefixMetrics.refresh();
+        }
+
+        // 7. 返回数据（刷新在后台进行，不阻塞当前请求）
+        return object;
+    }
+
+    // 写入带逻辑过期时间和重建耗时的数据，redis的真实过期时间 = 逻辑过期时间 + 最大容忍的过期时长
+    public void setWithEarlyRefresh(String key, Object value, Long time, TimeUnit unit, long delta) {
+        long ttlMillis = expirePolicy.ttlMillis(key, time, unit);
+        LocalDateTime expireTime = LocalDateTime.now().plus(ttlMillis, ChronoUnit.MILLIS);
+        setRaw(key, encodeLogical(metrics.ofKey(key), value, expireTime, delta), ttlMillis + TimeUnit.SECONDS.toMillis(earlyRefreshMaxStaleSeconds), TimeUnit.MILLISECONDS);
+    }
+
+    // 查询数据库并记录耗时，耗时作为下次提前刷新的权重
+    private <T, ID> T rebuildWithDelta(String key, ID id, Function<ID, T> dbCallBack, Long time, TimeUnit unit) {
+        long begin = System.nanoTime();
+        T object = load(metrics.ofKey(key), id, dbCallBack);
+        long delta = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - begin);
+        if (object == null) {
+            stringRedisTemplate.opsForValue().set(key, "", expirePolicy.nullTtlMillis(), TimeUnit.MILLISECONDS);
+            return null;
+        }
+        setWithEarlyRefresh(key, object, time, unit, delta);
+        return object;
+    }
+
+    // 重建调度器的提交、拒绝、去重等统计
+    public Map<String, Object> getRefreshStats() {
+        return refreshScheduler.stats();
     }
 }
@@ -0,0 +1,14 @@
+package com.hmdp.utils;
+
+// 缓存值的编解码器，CacheClient 通过它把对象写进redis、从redis读出对象
+//  marker 写在value的第一个字节，读的时候根据它选择编解码器，所以不同格式可以同时存在（方便灰度切换）
+public interface CacheCodec {
+
+    // 格式标记，不能和旧数据（hutool JSON文本）的第一个字符冲突
+    byte marker();
+
+    byte[] encode(Object value);
+
+    // 从offset开始解码，offset之前是格式标记等头部信息
+    <T> T decode(byte[] bytes, int offset, Class<T> type);
+}
@@ -0,0 +1,61 @@
+package com.hmdp.utils;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+// 缓存过期策略：所有写缓存的地方都通过它计算过期时间
+//  在基础过期时间上随机增加 0~jitterPercent% 的时间，避免批量预热的key在同一时刻过期（缓存雪崩）
+@Data
+@Component
+@ConfigurationProperties(prefix = "hmdp.cache.expire")
+public class CacheExpirePolicy {
+
+    private long defaultTtlSeconds = 1800; // 调用方没有指定过期时间时使用
+
+    private int jitterPercent = 10; // 随机增加的比例
+
+    private long nullTtlSeconds = TimeUnit.MINUTES.toSeconds(RedisConstants.CACHE_NULL_TTL); // 空值的过期时间
+
+    private Map<String, Long> overrides = new HashMap<>(); // key前缀 -> 基础过期时间（秒），优先于调用方传入的时间
+
+    // 计算过期时间（毫秒）：前缀覆盖 > 调用方传入 > 默认值，再加上随机抖动
+    public long ttlMillis(String key, Long time, TimeUnit unit) {
+        Long override = overrideOf(key);
+        long base;
+        if (override != null) {
+            base = TimeUnit.SECONDS.toMillis(override);
+        } else if (time != null) {
+            base = unit.toMillis(time);
+        } else {
+            base = TimeUnit.SECONDS.toMillis(defaultTtlSeconds);
+        }
+        return withJitter(base);
+    }
+
+    // 空值的过期时间（毫秒），同样加上随机抖动
+    public long nullTtlMillis() {
+        return withJitter(TimeUnit.SECONDS.toMillis(nullTtlSeconds));
+    }
+
+    private long withJitter(long base) {
+        long bound = base * jitterPercent / 100;
+        return bound <= 0 ? base : base + ThreadLocalRandom.current().nextLong(bound + 1);
+    }
+
+    // 最长前缀匹配
+    private Long overrideOf(String key) {
+        String matched = null;
+        for (String prefix : overrides.keySet()) {
+            if (key.startsWith(prefix) && (matched == null || prefix.length() > matched.length())) {
+                matched = prefix;
+            }
+        }
+        return matched == null ? null : overrides.get(matched);
+    }
+}
@@ -0,0 +1,94 @@
+package com.hmdp.utils;
+
+import org.springframework.stereotype.Component;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+// 缓存指标：按key前缀（cache:shop:、chche:shop_type 等）统计命中、未命中、加载耗时等
+@Component
+public class CacheMetrics {
+
+    private final Map<String, PrefixMetrics> metrics = new ConcurrentHashMap<>();
+
+    public PrefixMetrics of(String prefix) {
+        return metrics.computeIfAbsent(prefix, p -> new PrefixMetrics());
+    }
+
+    // 从完整的key推出前缀：取最后一个冒号之前的部分，例如 cache:shop:1 -> cache:shop:
+    public PrefixMetrics ofKey(String key) {
+        int index = key.lastIndexOf(':');
+        return of(index < 0 ? key : key.substring(0, index + 1));
+    }
+
+    public Map<String, Object> snapshot() {
+        Map<String, Object> snapshot = new TreeMap<>();
+        metrics.forEach((prefix, prefixMetrics) -> snapshot.put(prefix, prefixMetrics.snapshot()));
+        return snapshot;
+    }
+
+    public static class PrefixMetrics {
+        private final LongAdder hits = new LongAdder();         // redis命中
+        private final LongAdder nullHits = new LongAdder();     // 命中空值
+        private final LongAdder localHits = new LongAdder();    // 一级缓存命中
+        private final LongAdder misses = new LongAdder();       // 未命中
+        private final LongAdder bloomRejects = new LongAdder(); // 被布隆过滤器拦截
+        private final LongAdder refreshes = new LongAdder();    // 逻辑过期、提前刷新触发的重建
+        private final LatencyHistogram loadTime = new LatencyHistogram();        // 查询数据库
+        private final LatencyHistogram serializeTime = new LatencyHistogram();   // 序列化
+        private final LatencyHistogram deserializeTime = new LatencyHistogram(); // 反序列化
+
+        public void hit() {
+            hits.increment();
+        }
+
+        public void nullHit() {
+            nullHits.increment();
+        }
+
+        public void localHit() {
+            localHits.increment();
+        }
+
+        public void miss() {
+            misses.increment();
+        }
+
+        public void bloomReject() {
+            bloomRejects.increment();
+        }
+
+        public void refresh() {
+            refreshes.increment();
+        }
+
+        public void load(long nanos) {
+            loadTime.record(nanos);
+        }
+
+        public void serialize(long nanos) {
+            serializeTime.record(nanos);
+        }
+
+        public void deserialize(long nanos) {
+            deserializeTime.record(nanos);
+        }
+
+        private Map<String, Object> snapshot() {
+            Map<String, Object> snapshot = new HashMap<>();
+            snapshot.put("hits", hits.sum());
+            snapshot.put("nullHits", nullHits.sum());
+            snapshot.put("localHits", localHits.sum());
+            snapshot.put("misses", misses.sum());
+            snapshot.put("bloomRejects", bloomRejects.sum());
+            snapshot.put("refreshes", refreshes.sum());
+            snapshot.put("dbLoads", loadTime.snapshot());
+            snapshot.put("serialize", serializeTime.snapshot());
+            snapshot.put("deserialize", deserializeTime.snapshot());
+            return snapshot;
+        }
+    }
+}
@@ -0,0 +1,206 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.util.BooleanUtil;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+// 缓存重建调度器，逻辑过期、提前刷新的后台重建都交给它
+//  1. 同一个key在本节点只会排队一个重建任务，集群内通过互斥锁保证只有一个节点在重建
+//  2. 队列有界，满了直接拒绝并计数，不会无限堆积重复的数据库查询
+//  3. 任务开始执行时才获取锁，在重建完成之后才释放（锁的值是随机token，用unlock.lua比较后删除，不会误删别人的锁）
+//  4. 重建期间每 1/3 个锁有效期续约一次，重建比锁的有效期长也不会被其他节点拿到锁；
+//     续约失败（比如redis主从切换丢了锁）只记录日志和计数，正在执行的重建不会中断
+@Slf4j
+@Component
+public class CacheRefreshScheduler {
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Value("${hmdp.cache.refresh.pool-size:10}")
+    private int poolSize;
+
+    @Value("${hmdp.cache.refresh.queue-capacity:1000}")
+    private int queueCapacity;
+
+    @Value("${hmdp.cache.refresh.lock-ttl-seconds:10}")
+    private long lockTtlSeconds;
+
+    private ThreadPoolExecutor executor;
+
+    private ScheduledExecutorService renewer;
+
+    private final Map<String, Boolean> pending = new ConcurrentHashMap<>(); // 本节点已提交、还没结束的key
+
+    private final Map<String, String> held = new ConcurrentHashMap<>(); // 正在重建、需要续约的锁 -> token
+
+    private final LongAdder submitted = new LongAdder();
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder rejected = new LongAdder();     // 队列满被拒绝
+    private final LongAdder deduplicated = new LongAdder(); // 本节点已有相同key的任务
+    private final LongAdder lockMissed = new LongAdder();   // 其他节点正在重建
+    private final LongAdder lockLost = new LongAdder();     // 重建期间续约失败
+
+    private final static DefaultRedisScript<Long> unlockRedisScript;
+
+    private final static DefaultRedisScript<Long> renewRedisScript;
+
+    static {
+        unlockRedisScript = new DefaultRedisScript<>();
+        unlockRedisScript.setLocation(new ClassPathResource("unlock.lua"));
+        unlockRedisScript.setResultType(Long.class);
+
+        renewRedisScript = new DefaultRedisScript<>();
+        renewRedisScript.setLocation(new ClassPathResource("lease_renew.lua"));
+        renewRedisScript.setResultType(Long.class);
+    }
+
+    @PostConstruct
+    private void init() {
+        AtomicInteger index = new AtomicInteger();
+        executor = new ThreadPoolExecutor(
+                poolSize, poolSize,
+                60L, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(queueCapacity),
+                r -> {
+                    Thread thread = new Thread(r, "cache-refresh-" + index.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                },
+                new ThreadPoolExecutor.AbortPolicy());
+
+        renewer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "cache-refresh-renew");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long period = Math.max(1, TimeUnit.SECONDS.toMillis(lockTtlSeconds) / 3);
+        renewer.scheduleWithFixedDelay(this::renewAll, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        executor.shutdown();
+        renewer.shutdownNow();
+    }
+
+    /**
+     * 提交一个重建任务
+     * @param lockKey 互斥锁的key，同时也是去重的依据，要由完整的缓存key生成（lock:+缓存key），不同前缀的相同id不能共用
+     * @param rebuild 重建逻辑
+     * @return 是否进入了重建队列（真正执行前还要拿到集群锁）
+     */
+    public boolean submit(String lockKey, Runnable rebuild) {
+        // 1. 本节点已经有这个key的任务了
+        if (pending.putIfAbsent(lockKey, Boolean.TRUE) != null) {
+            deduplicated.increment();
+            return false;
+        }
+
+        // 2. 提交到有界队列，开始执行时才去拿锁，排队的时间不占用锁的有效期
+        try {
+            executor.execute(() -> run(lockKey, rebuild));
+            submitted.increment();
+            return true;
+        } catch (RejectedExecutionException e) {
+            rejected.increment();
+            pending.remove(lockKey);
+            log.warn("重建队列已满，放弃本次重建，lockKey={}", lockKey);
+            return false;
+        }
+    }
+
+    private void run(String lockKey, Runnable rebuild) {
+        // 1. 获取集群互斥锁，拿不到说明其他节点正在重建
+        String token = UUID.randomUUID().toString();
+        Boolean isLock;
+        try {
+            isLock = stringRedisTemplate.opsForValue().setIfAbsent(lockKey, token, lockTtlSeconds, TimeUnit.SECONDS);
+        } catch (Exception e) {
+            pending.remove(lockKey);
+            failed.increment();
+            log.error("获取重建锁失败，lockKey={}", lockKey, e);
+            return;
+        }
+        if (!BooleanUtil.isTrue(isLock)) {
+            pending.remove(lockKey);
+            lockMissed.increment();
+            return;
+        }
+
+        // 2. 重建期间定时续约，重建完成后才释放锁
+        held.put(lockKey, token);
+        try {
+            rebuild.run();
+            completed.increment();
+        } catch (Exception e) {
+            failed.increment();
+            log.error("重建缓存失败，lockKey={}", lockKey, e);
+        } finally {
+            release(lockKey, token);
+        }
+    }
+
+    private void release(String lockKey, String token) {
+        held.remove(lockKey);
+        try {
+            stringRedisTemplate.execute(unlockRedisScript, Collections.singletonList(lockKey), token);
+        } finally {
+            pending.remove(lockKey);
+        }
+    }
+
+    // 给所有正在重建的锁续约，锁已经不是自己的就不再续约
+    private void renewAll() {
+        for (Map.Entry<String, String> entry : held.entrySet()) {
+            try {
+                Long result = stringRedisTemplate.execute(renewRedisScript,
+                        Collections.singletonList(entry.getKey()), entry.getValue(), String.valueOf(lockTtlSeconds));
+                if (result == null || result != 1) {
+                    held.remove(entry.getKey(), entry.getValue());
+                    lockLost.increment();
+                    log.warn("重建锁续约失败，其他节点可能会同时重建，lockKey={}", entry.getKey());
+                }
+            } catch (Exception e) {
+                // 下一轮再试，锁还没过期就不影响
+                log.error("重建锁续约异常，lockKey={}", entry.getKey(), e);
+            }
+        }
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new HashMap<>();
+        stats.put("submitted", submitted.sum());
+        stats.put("completed", completed.sum());
+        stats.put("failed", failed.sum());
+        stats.put("rejected", rejected.sum());
+        stats.put("deduplicated", deduplicated.sum());
+        stats.put("lockMissed", lockMissed.sum());
+        stats.put("lockLost", lockLost.sum());
+        stats.put("queueSize", executor.getQueue().size());
+        stats.put("active", executor.getActiveCount());
+        return stats;
+    }
+}
@@ -0,0 +1,121 @@
+package com.hmdp.utils;
+
+import java.nio.ByteBuffer;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+
+// 缓存值的存储格式：
+//   普通值：   [格式标记 1字节][数据]
+//   逻辑过期： [格式标记|LOGICAL_FLAG 1字节][逻辑过期时间戳 8字节][重建耗时 8字节][数据]
+//   旧数据：   hutool JSON文本，没有格式标记（第一个字节是 '{' 等可见字符）
+//  💥逻辑过期的头部是定长二进制，数据只需要解析一次，不再需要 RedisData -> JSONObject -> Bean 两次转换
+public class CacheValueSerializer {
+
+    private static final int LOGICAL_FLAG = 0x10;
+
+    private static final int MAX_MARKER = 0x0F; // 格式标记的取值范围 1~15，都是不可见字符，不会和JSON文本冲突
+
+    private static final int LOGICAL_HEADER_LENGTH = 1 + 8 + 8;
+
+    private final CacheCodec[] codecs = new CacheCodec[MAX_MARKER + 1]; // 格式标记 -> 编解码器
+
+    private final HutoolJsonCacheCodec legacyCodec = new HutoolJsonCacheCodec();
+
+    private final CacheCodec writeCodec; // 写入使用的格式，null表示仍然写旧格式
+
+    public CacheValueSerializer(String format) {
+        register(JacksonCacheCodec.json());
+        register(JacksonCacheCodec.smile());
+        switch (format) {
+            case "json":
+                writeCodec = codecs[JacksonCacheCodec.JSON_MARKER];
+                break;
+            case "smile":
+                writeCodec = codecs[JacksonCacheCodec.SMILE_MARKER];
+                break;
+            case "hutool":
+                writeCodec = null;
+                break;
+            default:
+                throw new IllegalArgumentException("不支持的缓存格式：" + format);
+        }
+    }
+
+    // 注册自定义的编解码器，注册之后就能读取该格式的数据
+    public void register(CacheCodec codec) {
+        int marker = codec.marker();
+        if (marker < 1 || marker > MAX_MARKER) {
+            throw new IllegalArgumentException("格式标记必须在1~" + MAX_MARKER + "之间：" + marker);
+        }
+        codecs[marker] = codec;
+    }
+
+    public byte[] serialize(Object value) {
+        if (writeCodec == null) {
+            return legacyCodec.encode(value);
+        }
+        byte[] data = writeCodec.encode(value);
+        byte[] bytes = new byte[data.length + 1];
+        bytes[0] = writeCodec.marker();
+        System.arraycopy(data, 0, bytes, 1, data.length);
+        return bytes;
+    }
+
+    public byte[] serializeLogical(Object value, LocalDateTime expireTime, Long delta) {
+        // 旧格式仍然写成 RedisData 的JSON
+        if (writeCodec == null) {
+            RedisData redisData = new RedisData();
+            redisData.setData(value);
+            redisData.setExpireTime(expireTime);
+            redisData.setDelta(delta);
+            return legacyCodec.encode(redisData);
+        }
+        byte[] data = writeCodec.encode(value);
+        ByteBuffer buffer = ByteBuffer.allocate(LOGICAL_HEADER_LENGTH + data.length);
+        buffer.put((byte) (writeCodec.marker() | LOGICAL_FLAG));
+        buffer.putLong(expireTime.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli());
+        buffer.putLong(delta == null ? 0L : delta);
+        buffer.put(data);
+        return buffer.array();
+    }
+
+    public <T> T deserialize(byte[] bytes, Class<T> type) {
+        int header = bytes[0];
+        if (!isTagged(header)) {
+            return legacyCodec.decode(bytes, 0, type);
+        }
+        int offset = (header & LOGICAL_FLAG) != 0 ? LOGICAL_HEADER_LENGTH : 1;
+        return codecOf(header).decode(bytes, offset, type);
+    }
+
+    // 返回的 RedisData.data 已经是 type 类型的对象
+    public <T> RedisData deserializeLogical(byte[] bytes, Class<T> type) {
+        int header = bytes[0];
+        if (!isTagged(header)) {
+            return legacyCodec.decodeLogical(bytes, type);
+        }
+        if ((header & LOGICAL_FLAG) == 0) {
+            throw new IllegalStateException("缓存数据不是逻辑过期格式");
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(bytes, 1, LOGICAL_HEADER_LENGTH - 1);
+        RedisData redisData = new RedisData();
+        redisData.setExpireTime(LocalDateTime.ofInstant(Instant.ofEpochMilli(buffer.getLong()), ZoneId.systemDefault()));
+        redisData.setDelta(buffer.getLong());
+        redisData.setData(codecOf(header).decode(bytes, LOGICAL_HEADER_LENGTH, type));
+        return redisData;
+    }
+
+    // 第一个字节在 1~0x1F 之间说明带有格式标记
+    private boolean isTagged(int header) {
+        return header > 0 && header <= (LOGICAL_FLAG | MAX_MARKER);
+    }
+
+    private CacheCodec codecOf(int header) {
+        CacheCodec codec = codecs[header & MAX_MARKER];
+        if (codec == null) {
+            throw new IllegalStateException("未知的缓存格式标记：" + header);
+        }
+        return codec;
+    }
+}
@@ -0,0 +1,49 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.convert.Convert;
+import cn.hutool.json.JSONObject;
+import cn.hutool.json.JSONUtil;
+
+import java.nio.charset.StandardCharsets;
+
+// 旧格式：hutool JSON文本，没有格式标记，用于读取升级前写入的数据
+public class HutoolJsonCacheCodec implements CacheCodec {
+
+    public static final byte NO_MARKER = 0;
+
+    @Override
+    public byte marker() {
+        return NO_MARKER;
+    }
+
+    @Override
+    public byte[] encode(Object value) {
+        return JSONUtil.toJsonStr(value).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public <T> T decode(byte[] bytes, int offset, Class<T> type) {
+        String jsonStr = new String(bytes, offset, bytes.length - offset, StandardCharsets.UTF_8).trim();
+        if (jsonStr.startsWith("{")) {
+            JSONObject jsonObject = JSONUtil.parseObj(jsonStr);
+            // 逻辑过期格式（RedisData）按普通方式读取时，取 data 部分；其他对象（比如 Result）里的 data 字段不能拆开
+            if (jsonObject.containsKey("expireTime") && jsonObject.containsKey("data") && type != RedisData.class) {
+                return JSONUtil.toBean(jsonObject.getJSONObject("data"), type);
+            }
+            return JSONUtil.toBean(jsonObject, type);
+        }
+        if (jsonStr.startsWith("[")) {
+            // 集合按声明的类型转换，元素是 JSONObject
+            return Convert.convert(type, JSONUtil.parseArray(jsonStr));
+        }
+        // 如果不是对象，而是字符串、数字等，直接转
+        return Convert.convert(type, jsonStr);
+    }
+
+    // 旧的逻辑过期格式：{"expireTime":..., "data":{...}}
+    public <T> RedisData decodeLogical(byte[] bytes, Class<T> type) {
+        RedisData redisData = JSONUtil.toBean(new String(bytes, StandardCharsets.UTF_8), RedisData.class);
+        redisData.setData(JSONUtil.toBean((JSONObject) redisData.getData(), type));
+        return redisData;
+    }
+}
@@ -0,0 +1,233 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.hash.MurmurHash;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.Supplier;
+
+// 本地布隆过滤器，用来拦截数据库中根本不存在的id，解决缓存穿透问题
+//  1. 启动后在后台线程从数据库全量加载id，之后定时重建（布隆过滤器不支持删除，重建可以清掉已删除的id）
+//     第一次加载成功之前不拦截任何请求，数据库不可用时不影响启动，按间隔重试
+//  2. 新增数据时调用add，其他节点通过CacheClient的发布订阅同步
+//  💥布隆过滤器判断不存在则一定不存在，判断存在则可能误判，误判的请求仍由空值缓存兜底
+@Slf4j
+public class IdBloomFilter {
+
+    private final String name;
+
+    private final Supplier<Collection<?>> idLoader; // 全量加载id的方法
+
+    private final long configuredInsertions;
+
+    private final double fpp; // 期望的误判率
+
+    private volatile Bits current;
+
+    private volatile Bits rebuilding; // 重建期间新增的id也要写入新的过滤器，避免丢失
+
+    private volatile Set<String> added; // 从数据库加载id期间新增的id，新的过滤器还没创建，先记下来
+
+    private ScheduledExecutorService scheduler;
+
+    private long initRetryMillis = 30_000; // 第一次加载失败后的重试间隔
+
+    public IdBloomFilter(String name, Supplier<Collection<?>> idLoader, long expectedInsertions, double fpp) {
+        this.name = name;
+        this.idLoader = idLoader;
+        this.configuredInsertions = expectedInsertions;
+        this.fpp = fpp;
+    }
+
+    // 全量重建：先在新的过滤器中加载所有id，再整体替换
+    //  加载之前就开始记录新增的id，数据库快照里可能没有它们，替换前要补进新的过滤器
+    public synchronized void rebuild() {
+        long begin = System.currentTimeMillis();
+        added = ConcurrentHashMap.newKeySet();
+        Collection<?> ids;
+        try {
+            ids = idLoader.get();
+            Bits next = new Bits(Math.max(configuredInsertions, ids.size() * 2L), fpp);
+            for (Object id : ids) {
+                next.put(id.toString());
+            }
+            // 先发布新的过滤器，之后新增的id直接写入，再补上之前记下的
+            rebuilding = next;
+            for (String id : added) {
+                next.put(id);
+            }
+            current = next;
+        } finally {
+            rebuilding = null;
+            added = null;
+        }
+        log.info("布隆过滤器[{}]重建完成，id数量={}，用时={}ms", name, ids.size(), System.currentTimeMillis() - begin);
+    }
+
+    // 在后台线程立即加载一次，成功后定时重建；第一次加载失败时按重试间隔再试
+    public void scheduleRebuild(long period, TimeUnit unit) {
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "bloom-rebuild-" + name);
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.execute(() -> initialBuild(period, unit));
+    }
+
+    public void setInitRetryMillis(long initRetryMillis) {
+        this.initRetryMillis = initRetryMillis;
+    }
+
+    public boolean isReady() {
+        return current != null;
+    }
+
+    private void initialBuild(long period, TimeUnit unit) {
+        try {
+            rebuild();
+        } catch (Exception e) {
+            log.error("布隆过滤器[{}]初始化失败，{}ms后重试，在此之前不拦截请求", name, initRetryMillis, e);
+            scheduler.schedule(() -> initialBuild(period, unit), initRetryMillis, TimeUnit.MILLISECONDS);
+            return;
+        }
+        scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                rebuild();
+            } catch (Exception e) {
+                log.error("布隆过滤器[{}]重建失败", name, e);
+            }
+        }, period, period, unit);
+    }
+
+    public void shutdown() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+    }
+
+    public void add(Object id) {
+        String value = id.toString();
+        Set<String> pending = added;
+        if (pending != null) {
+            pending.add(value);
+        }
+        // 写入期间过滤器被替换了，要在新的过滤器上再写一次
+        Bits bits;
+        do {
+            bits = current;
+            if (bits != null) {
+                bits.put(value);
+            }
+        } while (bits != current);
+        Bits next = rebuilding;
+        if (next != null) {
+            next.put(value);
+        }
+    }
+
+    public boolean mightContain(Object id) {
+        Bits bits = current;
+        // 还没有初始化完成时，不能拦截任何请求
+        return bits == null || bits.mightContain(id.toString());
+    }
+
+    // 误判率、内存占用等信息
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new HashMap<>();
+        Bits bits = current;
+        stats.put("name", name);
+        stats.put("ready", bits != null);
+        stats.put("expectedFpp", fpp);
+        if (bits != null) {
+            stats.put("expectedInsertions", bits.expectedInsertions);
+            stats.put("bitSize", bits.bitSize);
+            stats.put("hashFunctions", bits.hashFunctions);
+            stats.put("memoryBytes", bits.bitSize / 8);
+            stats.put("approximateCount", bits.approximateCount());
+            stats.put("currentFpp", bits.currentFpp());
+        }
+        return stats;
+    }
+
+    // 位数组，使用 AtomicLongArray 保证并发写入安全
+    private static class Bits {
+        private final long expectedInsertions;
+        private final long bitSize;
+        private final int hashFunctions;
+        private final AtomicLongArray data;
+
+        private Bits(long expectedInsertions, double fpp) {
+            this.expectedInsertions = expectedInsertions;
+            // m = -n * ln(p) / (ln2)^2，k = m / n * ln2
+            long m = (long) (-expectedInsertions * Math.log(fpp) / (Math.log(2) * Math.log(2)));
+            this.bitSize = Math.max(64, (m + 63) / 64 * 64);
+            this.hashFunctions = Math.max(1, (int) Math.round((double) bitSize / expectedInsertions * Math.log(2)));
+            this.data = new AtomicLongArray((int) (bitSize / 64));
+        }
+
+        private void put(String value) {
+            long hash = MurmurHash.hash64(value);
+            int h1 = (int) hash;
+            int h2 = (int) (hash >>> 32);
+            for (int i = 1; i <= hashFunctions; i++) {
+                long index = indexOf(h1 + i * h2);
+                int word = (int) (index >>> 6);
+                long mask = 1L << index;
+                long old;
+                do {
+                    old = data.get(word);
+                    if ((old & mask) != 0) {
+                        break;
+                    }
+                } while (!data.compareAndSet(word, old, old | mask));
+            }
+        }
+
+        private boolean mightContain(String value) {
+            long hash = MurmurHash.hash64(value);
+            int h1 = (int) hash;
+            int h2 = (int) (hash >>> 32);
+            for (int i = 1; i <= hashFunctions; i++) {
+                long index = indexOf(h1 + i * h2);
+                if ((data.get((int) (index >>> 6)) & (1L << index)) == 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private long indexOf(int combinedHash) {
+            return (combinedHash & Long.MAX_VALUE) % bitSize;
+        }
+
+        private long bitCount() {
+            long count = 0;
+            for (int i = 0; i < data.length(); i++) {
+                count += Long.bitCount(data.get(i));
+            }
+            return count;
+        }
+
+        // 根据置位数量估算元素个数：n ≈ -m / k * ln(1 - x / m)
+        private long approximateCount() {
+            double ratio = (double) bitCount() / bitSize;
+            if (ratio >= 1) {
+                return Long.MAX_VALUE;
+            }
+            return Math.round(-(double) bitSize / hashFunctions * Math.log(1 - ratio));
+        }
+
+        // 按当前置位比例计算的实际误判率：(x / m) ^ k
+        private double currentFpp() {
+            return Math.pow((double) bitCount() / bitSize, hashFunctions);
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package com.hmdp.utils;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+
+import java.io.IOException;
+
+// 基于jackson的编解码器，ObjectMapper线程安全，全局复用一个
+//  json()：文本格式，方便用redis-cli排查问题
+//  smile()：jackson的二进制格式，体积更小、解析更快
+public class JacksonCacheCodec implements CacheCodec {
+
+    public static final byte JSON_MARKER = 0x01;
+    public static final byte SMILE_MARKER = 0x02;
+
+    private final byte marker;
+
+    private final ObjectMapper objectMapper;
+
+    private JacksonCacheCodec(byte marker, JsonFactory factory) {
+        this.marker = marker;
+        this.objectMapper = new ObjectMapper(factory)
+                .registerModule(new JavaTimeModule())
+                .setSerializationInclusion(JsonInclude.Include.NON_NULL)
+                .disable(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS)
+                .disable(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES);
+    }
+
+    public static JacksonCacheCodec json() {
+        return new JacksonCacheCodec(JSON_MARKER, new JsonFactory());
+    }
+
+    public static JacksonCacheCodec smile() {
+        return new JacksonCacheCodec(SMILE_MARKER, new SmileFactory());
+    }
+
+    @Override
+    public byte marker() {
+        return marker;
+    }
+
+    @Override
+    public byte[] encode(Object value) {
+        try {
+            return objectMapper.writeValueAsBytes(value);
+        } catch (IOException e) {
+            throw new RuntimeException("缓存序列化失败", e);
+        }
+    }
+
+    @Override
+    public <T> T decode(byte[] bytes, int offset, Class<T> type) {
+        try {
+            return objectMapper.readValue(bytes, offset, bytes.length - offset, type);
+        } catch (IOException e) {
+            throw new RuntimeException("缓存反序列化失败", e);
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package com.hmdp.utils;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+// 耗时直方图：按固定的桶统计次数，用于估算分位数，记录时不加锁
+public class LatencyHistogram {
+
+    // 桶的上界（微秒），最后一个桶表示超过 1s
+    private static final long[] BOUNDS_MICROS = {
+            50, 100, 250, 500, 1_000, 2_500, 5_000, 10_000, 25_000, 50_000, 100_000, 250_000, 500_000, 1_000_000, Long.MAX_VALUE
+    };
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BOUNDS_MICROS.length);
+
+    private final LongAdder count = new LongAdder();
+
+    private final LongAdder totalNanos = new LongAdder();
+
+    private final AtomicLong maxNanos = new AtomicLong();
+
+    public void record(long nanos) {
+        long micros = nanos / 1000;
+        int i = 0;
+        while (micros > BOUNDS_MICROS[i]) {
+            i++;
+        }
+        buckets.incrementAndGet(i);
+        count.increment();
+        totalNanos.add(nanos);
+        long max;
+        while (nanos > (max = maxNanos.get()) && !maxNanos.compareAndSet(max, nanos)) {
+            // 重试
+        }
+    }
+
+    // 次数、平均值、最大值和分位数（毫秒，分位数取所在桶的上界）
+    public Map<String, Object> snapshot() {
+        Map<String, Object> snapshot = new HashMap<>();
+        long total = count.sum();
+        snapshot.put("count", total);
+        snapshot.put("avgMs", total == 0 ? 0D : totalNanos.sum() / 1e6 / total);
+        snapshot.put("maxMs", maxNanos.get() / 1e6);
+        snapshot.put("p50Ms", percentile(total, 0.50));
+        snapshot.put("p90Ms", percentile(total, 0.90));
+        snapshot.put("p99Ms", percentile(total, 0.99));
+        return snapshot;
+    }
+
+    private double percentile(long total, double percent) {
+        if (total == 0) {
+            return 0D;
+        }
+        long threshold = (long) Math.ceil(total * percent);
+        long seen = 0;
+        for (int i = 0; i < BOUNDS_MICROS.length; i++) {
+            seen += buckets.get(i);
+            if (seen >= threshold) {
+                // 最后一个桶没有上界，用最大值代替
+                return i == BOUNDS_MICROS.length - 1 ? maxNanos.get() / 1e6 : BOUNDS_MICROS[i] / 1e3;
+            }
+        }
+        return maxNanos.get() / 1e6;
+    }
+}
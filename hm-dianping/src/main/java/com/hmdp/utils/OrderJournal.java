@@ -0,0 +1,341 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.VoucherOrder;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+// 本地预写日志：memory模式下，订单进入阻塞队列之前先追加到磁盘，重启后重放没入库的订单
+//  1. 日志按固定大小分段，每段预先分配并用mmap映射，追加就是往内存里写40个字节，写满了切换到下一段
+//  2. 后台一个线程负责刷盘，刷盘期间到达的记录下一次一起刷（group fsync），调用方可以等待自己的记录落盘
+//  3. 订单入库后调用commit，把记录的校验和清掉，重放时跳过；一段里的订单全部入库、并且这段已经写满或者日志已关闭，整段文件删除
+//  4. commit写的是映射的内存，进程挂了也不会丢；机器宕机时可能重放已经入库的订单，依赖订单主键去重
+//  5. 没能进入队列、被回滚的订单调用cancel，和commit一样作废这条记录
+@Slf4j
+public class OrderJournal {
+
+    // 记录格式：orderId、userId、voucherId、下单时间（毫秒）、校验和，各8个字节
+    //  orderId为0表示这一段后面没有数据了，校验和不对说明写到一半进程就挂了，或者订单已经被回滚
+    private static final int RECORD_SIZE = 40;
+    private static final String FILE_PREFIX = "journal-";
+    private static final String FILE_SUFFIX = ".log";
+
+    private final File dir;
+    private final int segmentRecords; // 每段能放下的记录数
+
+    private final Map<Long, Slot> pending = new ConcurrentHashMap<>(); // 还没入库的订单记录在哪里
+
+    // 以下字段由this保护
+    private Segment active;
+    private long nextSegmentId;
+    private long appendedSeq; // 已经写入的记录数
+
+    private volatile long durableSeq; // 已经刷盘的记录数
+    private final Object durableLock = new Object();
+
+    private volatile boolean running = true;
+    private Thread flusher;
+
+    private final LongAdder appends = new LongAdder();
+    private final LongAdder fsyncs = new LongAdder();
+    private final LongAdder fsyncTimeouts = new LongAdder();
+    private final LatencyHistogram fsyncTime = new LatencyHistogram();
+
+    public OrderJournal(File dir, long segmentBytes) {
+        this.dir = dir;
+        this.segmentRecords = (int) Math.max(1, Math.min(Integer.MAX_VALUE / RECORD_SIZE, segmentBytes / RECORD_SIZE));
+    }
+
+    // 打开日志，返回上次没入库的订单，这些订单所在的段会保留到它们都commit为止
+    public synchronized List<VoucherOrder> open() throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("无法创建日志目录：" + dir);
+        }
+
+        // 1. 按段号顺序读取已有的段
+        List<VoucherOrder> recovered = new ArrayList<>();
+        File[] files = dir.listFiles((d, name) -> name.startsWith(FILE_PREFIX) && name.endsWith(FILE_SUFFIX));
+        if (files != null) {
+            Arrays.sort(files);
+            for (File file : files) {
+                long id = Long.parseLong(file.getName().substring(FILE_PREFIX.length(), file.getName().length() - FILE_SUFFIX.length()));
+                nextSegmentId = Math.max(nextSegmentId, id + 1);
+                Segment segment = new Segment(file, map(file, file.length()));
+                Map<Long, Slot> slots = segment.read(recovered);
+                pending.putAll(slots);
+                segment.pending.set(slots.size());
+                segment.seal();
+            }
+        }
+
+        // 2. 新的订单写到新的一段
+        active = newSegment();
+        flusher = new Thread(this::flushLoop, "order-journal-flusher");
+        flusher.setDaemon(true);
+        flusher.start();
+        log.info("订单日志已打开，dir={}，待重放订单{}条", dir, recovered.size());
+        return recovered;
+    }
+
+    // 追加一条订单记录，返回序号，可以用awaitDurable等待它落盘
+    public long append(VoucherOrder order) throws IOException {
+        long createMillis = order.getCreateTime() == null ? System.currentTimeMillis()
+                : order.getCreateTime().atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        long seq;
+        synchronized (this) {
+            if (!running) {
+                throw new IOException("订单日志已关闭");
+            }
+            if (active.count == segmentRecords) {
+                rotate();
+            }
+            Segment segment = active;
+            int offset = segment.count * RECORD_SIZE;
+            MappedByteBuffer buffer = segment.buffer;
+            buffer.putLong(offset + 8, order.getUserId());
+            buffer.putLong(offset + 16, order.getVoucherId());
+            buffer.putLong(offset + 24, createMillis);
+            buffer.putLong(offset + 32, checksum(order.getId(), order.getUserId(), order.getVoucherId(), createMillis));
+            // orderId最后写，读的时候看到orderId才认为这条记录存在
+            buffer.putLong(offset, order.getId());
+            segment.count++;
+            segment.pending.incrementAndGet();
+            pending.put(order.getId(), new Slot(segment, offset));
+            seq = ++appendedSeq;
+        }
+        appends.increment();
+        LockSupport.unpark(flusher);
+        return seq;
+    }
+
+    // 等待序号之前的记录都落盘，超时返回false（记录已经在page cache里，进程挂了也不会丢，只有机器宕机才会丢）
+    public boolean awaitDurable(long seq, long timeoutMillis) {
+        if (durableSeq >= seq) {
+            return true;
+        }
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        synchronized (durableLock) {
+            while (durableSeq < seq) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    fsyncTimeouts.increment();
+                    return false;
+                }
+                try {
+                    TimeUnit.NANOSECONDS.timedWait(durableLock, remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    // 订单已经处理完（入库成功、最终失败或者被回滚），不再需要重放
+    public void commit(Collection<VoucherOrder> orders) {
+        for (VoucherOrder order : orders) {
+            commit(order.getId());
+        }
+    }
+
+    public void commit(Long orderId) {
+        discard(orderId);
+    }
+
+    // 订单被回滚了（比如队列已满），作废这条记录，重启时不能再重放
+    public void cancel(Long orderId) {
+        discard(orderId);
+    }
+
+    private void discard(Long orderId) {
+        Slot slot = pending.remove(orderId);
+        if (slot != null) {
+            slot.segment.buffer.putLong(slot.offset + 32, 0L);
+            slot.segment.release();
+        }
+    }
+
+    // 关闭前把所有记录刷盘，没commit的订单下次启动时重放；当前段的订单都已经commit的话直接删除
+    public void close() {
+        synchronized (this) {
+            if (!running) {
+                return;
+            }
+            running = false;
+        }
+        LockSupport.unpark(flusher);
+        try {
+            flusher.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            active.buffer.force();
+            active.seal();
+        }
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new HashMap<>();
+        stats.put("appends", appends.sum());
+        stats.put("fsyncs", fsyncs.sum());
+        stats.put("fsyncTimeouts", fsyncTimeouts.sum());
+        stats.put("fsyncTime", fsyncTime.snapshot());
+        stats.put("pendingOrders", pending.size());
+        return stats;
+    }
+
+    // 刷盘线程：有新记录就刷，刷盘期间追加的记录留给下一轮，一次force覆盖一批记录
+    private void flushLoop() {
+        while (running || durableSeq < appendedSeqSnapshot()) {
+            long target;
+            Segment segment;
+            synchronized (this) {
+                target = appendedSeq;
+                segment = active;
+            }
+            if (target == durableSeq) {
+                LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(100));
+                continue;
+            }
+            long begin = System.nanoTime();
+            try {
+                // 之前的段在切换时已经刷过盘了
+                segment.buffer.force();
+            } catch (Exception e) {
+                log.error("订单日志刷盘失败", e);
+                LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(10));
+                continue;
+            }
+            fsyncs.increment();
+            fsyncTime.record(System.nanoTime() - begin);
+            synchronized (durableLock) {
+                durableSeq = target;
+                durableLock.notifyAll();
+            }
+        }
+    }
+
+    private synchronized long appendedSeqSnapshot() {
+        return appendedSeq;
+    }
+
+    // 当前段写满了：刷盘后封存，订单都已经入库的话直接删除
+    private void rotate() throws IOException {
+        Segment full = active;
+        full.buffer.force();
+        active = newSegment();
+        full.seal();
+    }
+
+    private Segment newSegment() throws IOException {
+        File file = new File(dir, String.format("%s%020d%s", FILE_PREFIX, nextSegmentId++, FILE_SUFFIX));
+        return new Segment(file, map(file, (long) segmentRecords * RECORD_SIZE));
+    }
+
+    private static MappedByteBuffer map(File file, long size) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw"); FileChannel channel = raf.getChannel()) {
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+    }
+
+    private static long checksum(long orderId, long userId, long voucherId, long createMillis) {
+        long h = orderId * 0x9E3779B97F4A7C15L;
+        h = (h ^ userId) * 0xC2B2AE3D27D4EB4FL;
+        h = (h ^ voucherId) * 0x165667B19E3779F9L;
+        h = (h ^ createMillis) * 0x27D4EB2F165667C5L;
+        return h ^ (h >>> 31);
+    }
+
+    private static class Segment {
+        private final File file;
+        private final MappedByteBuffer buffer;
+        private final AtomicInteger pending = new AtomicInteger(); // 这一段里还没commit的订单数
+        private final AtomicBoolean deleted = new AtomicBoolean();
+        private int count; // 已经写入的记录数，由OrderJournal的锁保护
+        private volatile boolean sealed;
+
+        private Segment(File file, MappedByteBuffer buffer) {
+            this.file = file;
+            this.buffer = buffer;
+        }
+
+        // 读到orderId为0为止，校验和不对的记录（写了一半、已经作废）跳过
+        private Map<Long, Slot> read(List<VoucherOrder> orders) {
+            Map<Long, Slot> slots = new HashMap<>();
+            int records = buffer.capacity() / RECORD_SIZE;
+            for (int i = 0; i < records; i++) {
+                int offset = i * RECORD_SIZE;
+                long orderId = buffer.getLong(offset);
+                if (orderId == 0) {
+                    break;
+                }
+                count++;
+                long userId = buffer.getLong(offset + 8);
+                long voucherId = buffer.getLong(offset + 16);
+                long createMillis = buffer.getLong(offset + 24);
+                if (buffer.getLong(offset + 32) != checksum(orderId, userId, voucherId, createMillis)) {
+                    continue;
+                }
+                VoucherOrder order = new VoucherOrder();
+                order.setId(orderId);
+                order.setUserId(userId);
+                order.setVoucherId(voucherId);
+                order.setCreateTime(LocalDateTime.ofInstant(Instant.ofEpochMilli(createMillis), ZoneId.systemDefault()));
+                orders.add(order);
+                slots.put(orderId, new Slot(this, offset));
+            }
+            return slots;
+        }
+
+        private void release() {
+            if (pending.decrementAndGet() == 0 && sealed) {
+                delete();
+            }
+        }
+
+        private void seal() {
+            sealed = true;
+            if (pending.get() == 0) {
+                delete();
+            }
+        }
+
+        // 映射的内存等GC回收，Linux上文件删除后已映射的内存仍然可以访问
+        private void delete() {
+            if (deleted.compareAndSet(false, true) && !file.delete()) {
+                log.warn("删除订单日志失败：{}", file);
+            }
+        }
+    }
+
+    private static class Slot {
+        private final Segment segment;
+        private final int offset;
+
+        private Slot(Segment segment, int offset) {
+            this.segment = segment;
+            this.offset = offset;
+        }
+    }
+}
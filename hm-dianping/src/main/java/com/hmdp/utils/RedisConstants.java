@@ -11,13 +11,42 @@ public class RedisConstants {
     public static final Long CACHE_SHOP_TTL = 30L;
     public static final String CACHE_SHOP_KEY = "cache:shop:";
 
+    public static final String CACHE_USER_KEY = "cache:user:";
+    public static final Long CACHE_USER_TTL = 30L;
+
+    public static final String CACHE_BLOG_KEY = "cache:blog:";
+    public static final Long CACHE_BLOG_TTL = 30L;
+
+    public static final String CACHE_USER_INFO_KEY = "cache:user_info:";
+
+    public static final String CACHE_SHOP_VOUCHER_KEY = "cache:shop_voucher:";
+
     public static final String CACHE_SHOP_TYPE_KEY = "chche:shop_type";
     public static final Long CACHE_SHOP_TYPE_TTL = 60L;
 
+    public static final String CACHE_INVALIDATE_CHANNEL = "cache:invalidate";
+    public static final String CACHE_BLOOM_ADD_CHANNEL = "cache:bloom:add";
+
     public static final String LOCK_SHOP_KEY = "lock:shop:";
     public static final Long LOCK_SHOP_TTL = 10L;
+    public static final String LOCK_CACHE_KEY = "lock:"; // 缓存重建锁，后面拼完整的缓存key，不同前缀的缓存互不影响
 
     public static final String SECKILL_STOCK_KEY = "seckill:stock:";
+    public static final String SECKILL_ORDER_KEY = "seckill:order:";
+    public static final String SECKILL_BUYER_KEY = "seckill:buyer:";
+    public static final String SECKILL_META_KEY = "seckill:meta:";
+    public static final String SECKILL_TIME_KEY = "seckill:time:";
+    public static final String SECKILL_LIMIT_KEY = "seckill:limit:";
+    public static final String ORDER_STATUS_KEY = "order:status:";
+    public static final Long ORDER_STATUS_UNKNOWN_TTL = 60L;
+    public static final String ORDER_TIMEOUT_KEY = "order:timeout";
+    public static final String SECKILL_SOLD_OUT_CHANNEL = "seckill:soldout";
+    public static final String SECKILL_STREAM_KEY = "stream.orders";
+    public static final String SECKILL_VOUCHER_STREAM_KEY = "stream.orders:voucher:";
+    public static final String SECKILL_STREAM_INDEX_KEY = "stream.orders:index";
+    public static final String SECKILL_STREAM_GROUP = "g1";
+    public static final String SECKILL_STREAM_DEAD_KEY = "stream.orders.dead";
+    public static final String SNOWFLAKE_WORKER_KEY = "snowflake:worker:";
     public static final String BLOG_LIKED_KEY = "blog:liked:";
     public static final String FOLLOW_KEY = "follow:";
     public static final String FEED_KEY = "feed:";
@@ -8,4 +8,5 @@ import java.time.LocalDateTime;
 public class RedisData {
     private LocalDateTime expireTime;
     private Object data;
+    private Long delta; // 上次重建缓存的耗时（毫秒），提前刷新模式使用
 }
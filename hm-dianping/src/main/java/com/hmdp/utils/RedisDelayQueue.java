@@ -0,0 +1,67 @@
+package com.hmdp.utils;
+
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+// 基于zset的延迟队列：元素是业务id，分数是到期时间（毫秒）
+//  1. 领取到期元素用lua脚本，一次最多领取count个，多个节点同时轮询也不会重复领取
+//  2. 领取后元素并不删除，只是推迟到处理超时之后，处理完调用remove，处理失败或节点挂了会被重新领取
+public class RedisDelayQueue {
+
+    private final StringRedisTemplate stringRedisTemplate;
+    private final String key;
+
+    private final static DefaultRedisScript<List> claimRedisScript;
+
+    static {
+        claimRedisScript = new DefaultRedisScript<>();
+        claimRedisScript.setLocation(new ClassPathResource("delay_claim.lua"));
+        claimRedisScript.setResultType(List.class);
+    }
+
+    public RedisDelayQueue(StringRedisTemplate stringRedisTemplate, String key) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.key = key;
+    }
+
+    // 批量加入，一次pipeline写完，key是元素，value是到期时间
+    public void addAll(Map<String, Long> deadlines) {
+        if (deadlines.isEmpty()) {
+            return;
+        }
+        byte[] rawKey = key.getBytes(StandardCharsets.UTF_8);
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (Map.Entry<String, Long> entry : deadlines.entrySet()) {
+                connection.zSetCommands().zAdd(rawKey, entry.getValue(), entry.getKey().getBytes(StandardCharsets.UTF_8));
+            }
+            return null;
+        });
+    }
+
+    // 领取已经到期的元素，processMillis内没有remove的话会被再次领取
+    @SuppressWarnings("unchecked")
+    public List<String> claim(long now, int count, long processMillis) {
+        List<String> ids = stringRedisTemplate.execute(claimRedisScript, Collections.singletonList(key),
+                String.valueOf(now), String.valueOf(count), String.valueOf(processMillis));
+        return ids == null ? Collections.emptyList() : ids;
+    }
+
+    public void remove(Collection<String> ids) {
+        if (!ids.isEmpty()) {
+            stringRedisTemplate.opsForZSet().remove(key, ids.toArray());
+        }
+    }
+
+    public long size() {
+        Long size = stringRedisTemplate.opsForZSet().zCard(key);
+        return size == null ? 0 : size;
+    }
+}
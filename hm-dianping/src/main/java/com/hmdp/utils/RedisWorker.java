@@ -1,13 +1,23 @@
 package com.hmdp.utils;
 
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.annotation.Resource;
 import java.time.LocalDateTime;
 import java.time.ZoneOffset;
 import java.time.format.DateTimeFormatter;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
 
+@Slf4j
 @Component
 public class RedisWorker {
     @Resource
@@ -17,22 +27,174 @@ public class RedisWorker {
 
     private final static long OFFSET_BIT = 32L;
 
+    private final static DateTimeFormatter DATE_FORMATTER = DateTimeFormatter.ofPattern("yyyy:MM:dd");
+
+    // id的生成方式：incr（每个id一次INCR）、segment（一次INCRBY预留一段序列号，在本地发放）、
+    //  snowflake（雪花算法，启动时在redis租用workerId，之后发号不访问网络，id格式见 SnowflakeIdGenerator）
+    @Value("${hmdp.id.mode:incr}")
+    private String mode;
+
+    @Value("${hmdp.id.snowflake.lease-seconds:30}")
+    private long leaseSeconds;
+
+    private SnowflakeWorkerLease lease;
+
+    private SnowflakeIdGenerator snowflake;
+
+    @Value("${hmdp.id.segment-size:1000}")
+    private long segmentSize;
+
+    // 当前号段剩余不到这个比例时，后台提前预留下一段
+    @Value("${hmdp.id.refill-ratio:0.2}")
+    private double refillRatio;
+
+    private volatile String[] today = {"", ""}; // [当天的UTC日期（epochDay）, 格式化后的日期]，避免每次都格式化
+
+    private final Map<String, SegmentBuffer> buffers = new ConcurrentHashMap<>();
+
+    private final ExecutorService refillPool = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "id-segment-refill");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    @PostConstruct
+    private void init() {
+        if (!"snowflake".equalsIgnoreCase(mode)) {
+            return;
+        }
+        lease = new SnowflakeWorkerLease(stringRedisTemplate, leaseSeconds);
+        long workerId = lease.acquire();
+        if (workerId < 0) {
+            throw new IllegalStateException("没有可用的雪花算法workerId");
+        }
+        snowflake = new SnowflakeIdGenerator(workerId);
+        lease.startRenewal(snowflake::setWorkerId);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        refillPool.shutdownNow();
+        if (lease != null) {
+            lease.release();
+        }
+    }
+
     /**
      * 创建一个全局唯一的ID，由 “符号位 + 时间戳 + 序列号” 组成
      */
     public long nextId(String prefix_key) {
+        // 雪花算法的id全局唯一，不需要按前缀区分
+        if (snowflake != null) {
+            return snowflake.nextId();
+        }
+
         // 1. 创建时间戳
         LocalDateTime now = LocalDateTime.now();
-        long timeStamp = now.toEpochSecond(ZoneOffset.UTC) - beginTime;
+        long epochSecond = now.toEpochSecond(ZoneOffset.UTC);
+        long timeStamp = epochSecond - beginTime;
 
         // 2. 通常increment指令，生成序列号（对于key，为了提高安全性，最好加上一个格式时间，让每天生成的序列号区分开）
-        String date = now.format(DateTimeFormatter.ofPattern("yyyy:MM:dd"));
-        long serial = stringRedisTemplate.opsForValue().increment("inc:" + prefix_key + ":" + date);
+        String date = formatDate(now);
+        long serial;
+        if ("segment".equalsIgnoreCase(mode)) {
+            serial = buffers.computeIfAbsent(prefix_key, SegmentBuffer::new).next(date);
+        } else {
+            serial = stringRedisTemplate.opsForValue().increment("inc:" + prefix_key + ":" + date);
+        }
 
         // 3. 拼接成id进行返回
         return timeStamp << OFFSET_BIT | serial;
     }
 
+    private String formatDate(LocalDateTime now) {
+        String day = String.valueOf(now.toLocalDate().toEpochDay());
+        String[] cached = today;
+        if (cached[0].equals(day)) {
+            return cached[1];
+        }
+        String date = now.format(DATE_FORMATTER);
+        today = new String[]{day, date};
+        return date;
+    }
+
+    // 号段：[cursor, end] 之间的序列号都属于本节点，用原子计数器发放
+    private static class Segment {
+        private final String date;
+        private final AtomicLong cursor;
+        private final long end;
+
+        private Segment(String date, long start, long end) {
+            this.date = date;
+            this.cursor = new AtomicLong(start);
+            this.end = end;
+        }
+    }
+
+    // 每个key前缀一个双号段缓冲：当前号段快用完时，后台线程预留下一段，用完直接切换，不用等redis
+    //  序列号仍然按天从redis的同一个key上分配，和incr模式可以混用，id布局不变
+    private class SegmentBuffer {
+        private final String prefix;
+        private volatile Segment current;
+        private volatile Segment next;
+
+        private SegmentBuffer(String prefix) {
+            this.prefix = prefix;
+        }
+
+        private long next(String date) {
+            while (true) {
+                Segment segment = current;
+                if (segment != null && segment.date.equals(date)) {
+                    long serial = segment.cursor.getAndIncrement();
+                    if (serial <= segment.end) {
+                        // 刚好越过阈值的线程负责触发预留，只会触发一次
+                        if (segment.end - serial == refillThreshold()) {
+                            refillPool.execute(() -> prefetch(segment.date));
+                        }
+                        return serial;
+                    }
+                }
+                // 号段用完了或者到了第二天，切换到下一段
+                switchSegment(segment, date);
+            }
+        }
+
+        private synchronized void switchSegment(Segment used, String date) {
+            // 其他线程已经切换过了
+            if (current != used) {
+                return;
+            }
+            Segment prefetched = next;
+            next = null;
+            current = prefetched != null && prefetched.date.equals(date) ? prefetched : allocate(date);
+        }
+
+        private void prefetch(String date) {
+            try {
+                Segment segment = allocate(date);
+                synchronized (this) {
+                    if (next == null) {
+                        next = segment;
+                    }
+                }
+            } catch (Exception e) {
+                // 预留失败也没关系，用完时会同步再申请一次
+                log.warn("预留id号段失败，prefix={}", prefix, e);
+            }
+        }
+
+        // INCRBY inc:prefix:yyyy:MM:dd segmentSize，返回值是这一段的结尾
+        private Segment allocate(String date) {
+            Long end = stringRedisTemplate.opsForValue().increment("inc:" + prefix + ":" + date, segmentSize);
+            return new Segment(date, end - segmentSize + 1, end);
+        }
+
+        private long refillThreshold() {
+            return Math.max(1, (long) (segmentSize * refillRatio));
+        }
+    }
+
     public static void main(String[] args) {
         LocalDateTime tmp = LocalDateTime.of(2025, 1, 1, 0, 0);
         System.out.println(tmp.toString());
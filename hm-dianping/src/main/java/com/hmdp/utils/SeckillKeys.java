@@ -0,0 +1,69 @@
+package com.hmdp.utils;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_BUYER_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_LIMIT_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_STOCK_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_TIME_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_VOUCHER_STREAM_KEY;
+
+// 秒杀库存分片的key布局
+//  1. 不分片：沿用 seckill:stock:{voucherId}（没有花括号），兼容已有数据
+//  2. 分片：seckill:stock:{voucherId:i}、seckill:order:{voucherId:i}、seckill:buyer:{voucherId:i}、seckill:time:{voucherId:i}、seckill:limit:{voucherId:i}、
+//     stream.orders:voucher:{voucherId:i}，同一分片的key使用同一个hash tag，
+//     在Redis Cluster中落在同一个slot，一个lua脚本就能处理；不同分片落在不同slot，可以分散到多个节点
+//  3. 用户按userId固定属于一个分片（主分片），一人一单只在主分片的集合里判断
+public class SeckillKeys {
+
+    private SeckillKeys() {
+    }
+
+    public static int shardOf(Long userId, int shards) {
+        if (shards <= 1) {
+            return 0;
+        }
+        return Math.floorMod(Long.hashCode(userId * 0x9E3779B97F4A7C15L), shards);
+    }
+
+    public static String stockKey(Long voucherId, int shards, int shard) {
+        return shards <= 1 ? SECKILL_STOCK_KEY + voucherId : SECKILL_STOCK_KEY + "{" + voucherId + ":" + shard + "}";
+    }
+
+    public static String orderKey(Long voucherId, int shards, int shard) {
+        return shards <= 1 ? SECKILL_ORDER_KEY + voucherId : SECKILL_ORDER_KEY + "{" + voucherId + ":" + shard + "}";
+    }
+
+    // 下单用户位图，偏移量就是userId，和下单用户集合在同一个slot
+    public static String buyerKey(Long voucherId, int shards, int shard) {
+        return shards <= 1 ? SECKILL_BUYER_KEY + voucherId : SECKILL_BUYER_KEY + "{" + voucherId + ":" + shard + "}";
+    }
+
+    // 订单stream，每个优惠券分片一个，和库存在同一个slot，lua脚本扣库存的同时写入订单消息
+    public static String streamKey(Long voucherId, int shards, int shard) {
+        return shards <= 1 ? SECKILL_VOUCHER_STREAM_KEY + voucherId : SECKILL_VOUCHER_STREAM_KEY + "{" + voucherId + ":" + shard + "}";
+    }
+
+    // 秒杀的时间窗口，每个分片都保存一份，和库存在同一个slot
+    public static String timeKey(Long voucherId, int shards, int shard) {
+        return shards <= 1 ? SECKILL_TIME_KEY + voucherId : SECKILL_TIME_KEY + "{" + voucherId + ":" + shard + "}";
+    }
+
+    // 集群令牌桶，每个分片一个桶，限流速率平均分到每个分片
+    public static String limitKey(Long voucherId, int shards, int shard) {
+        return shards <= 1 ? SECKILL_LIMIT_KEY + voucherId : SECKILL_LIMIT_KEY + "{" + voucherId + ":" + shard + "}";
+    }
+
+    // 用户限流计数，放在用户主分片的slot里
+    public static String userLimitKey(Long voucherId, int shards, int shard, Long userId) {
+        return limitKey(voucherId, shards, shard) + ":user:" + userId;
+    }
+
+    // 把库存平均分到每个分片，余数分给前面的分片
+    public static int[] split(int stock, int shards) {
+        int[] result = new int[Math.max(1, shards)];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = stock / result.length + (i < stock % result.length ? 1 : 0);
+        }
+        return result;
+    }
+}
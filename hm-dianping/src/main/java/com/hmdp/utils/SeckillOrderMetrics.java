@@ -0,0 +1,91 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.VoucherOrder;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+// 秒杀订单指标：吞吐量、批量大小、入库耗时、订单从下单到入库的延迟，以及被限流拒绝的请求
+@Component
+public class SeckillOrderMetrics {
+
+    private final LongAdder persisted = new LongAdder(); // 已处理完的订单数
+    private final LongAdder failed = new LongAdder();    // 逐条重试后仍失败的订单数
+    private final LongAdder batches = new LongAdder();   // 成功的批次数
+    private final LongAdder fallbacks = new LongAdder(); // 批量失败、改为逐条处理的次数
+    private final LongAdder cancelled = new LongAdder(); // 超时未支付被取消的订单数
+
+    private final LatencyHistogram batchTime = new LatencyHistogram(); // 一批订单的入库耗时
+    private final LatencyHistogram lag = new LatencyHistogram();       // 下单到入库的延迟
+
+    private final Map<String, LongAdder> rejected = new ConcurrentHashMap<>(); // 按原因统计被限流、排队失败的请求
+
+    private volatile long lastLagMillis;
+
+    // 计算吞吐量用：上一次查看指标的时间和已处理数
+    private long lastSnapshotNanos = System.nanoTime();
+    private long lastSnapshotPersisted;
+
+    public void batch(List<VoucherOrder> orders, long nanos) {
+        batches.increment();
+        batchTime.record(nanos);
+        persisted(orders);
+    }
+
+    public void persisted(List<VoucherOrder> orders) {
+        persisted.add(orders.size());
+        LocalDateTime now = LocalDateTime.now();
+        for (VoucherOrder order : orders) {
+            if (order.getCreateTime() != null) {
+                long nanos = Duration.between(order.getCreateTime(), now).toNanos();
+                lag.record(Math.max(0, nanos));
+                lastLagMillis = nanos / 1_000_000;
+            }
+        }
+    }
+
+    public void rejected(String reason) {
+        rejected.computeIfAbsent(reason, r -> new LongAdder()).increment();
+    }
+
+    public void fallback() {
+        fallbacks.increment();
+    }
+
+    public void failed(int count) {
+        failed.add(count);
+    }
+
+    public void cancelled(int count) {
+        cancelled.add(count);
+    }
+
+    public synchronized Map<String, Object> snapshot() {
+        Map<String, Object> snapshot = new HashMap<>();
+        long total = persisted.sum();
+        long now = System.nanoTime();
+        double seconds = (now - lastSnapshotNanos) / 1e9;
+        snapshot.put("persisted", total);
+        snapshot.put("failed", failed.sum());
+        snapshot.put("batches", batches.sum());
+        snapshot.put("fallbacks", fallbacks.sum());
+        snapshot.put("cancelled", cancelled.sum());
+        // 距离上次查看指标的平均吞吐量
+        snapshot.put("ordersPerSecond", seconds <= 0 ? 0D : (total - lastSnapshotPersisted) / seconds);
+        snapshot.put("batchTime", batchTime.snapshot());
+        snapshot.put("lag", lag.snapshot());
+        snapshot.put("lastLagMs", lastLagMillis);
+        Map<String, Long> rejectedCounts = new HashMap<>();
+        rejected.forEach((reason, count) -> rejectedCounts.put(reason, count.sum()));
+        snapshot.put("rejected", rejectedCounts);
+        lastSnapshotNanos = now;
+        lastSnapshotPersisted = total;
+        return snapshot;
+    }
+}
@@ -0,0 +1,96 @@
+package com.hmdp.utils;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+// 本地售罄标记：lua脚本返回库存不足后记下来，之后的请求直接在本节点拒绝，不再访问redis
+//  1. 通过发布订阅同步给其他节点，补充库存时清除
+//  2. 标记带过期时间，过期后放一个请求去redis确认，就算清除消息和售罄消息乱序到达，也只会多拒绝一小段时间
+@Component
+public class SeckillSoldOutRegistry {
+
+    private static final String SOLD_OUT = "soldout";
+    private static final String RESTOCK = "restock";
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private RedisMessageListenerContainer listenerContainer;
+
+    @Value("${hmdp.seckill.sold-out-ttl-seconds:30}")
+    private long ttlSeconds;
+
+    private final Map<Long, Long> soldOut = new ConcurrentHashMap<>(); // 优惠券id -> 标记过期时间
+
+    private final LongAdder rejected = new LongAdder(); // 本地直接拒绝的请求数
+
+    @PostConstruct
+    private void init() {
+        // 消息格式：soldout|voucherId 或 restock|voucherId
+        listenerContainer.addMessageListener((message, pattern) -> {
+            String body = stringRedisTemplate.getStringSerializer().deserialize(message.getBody());
+            int index = body == null ? -1 : body.indexOf('|');
+            if (index < 0) {
+                return;
+            }
+            Long voucherId = Long.valueOf(body.substring(index + 1));
+            if (SOLD_OUT.equals(body.substring(0, index))) {
+                markLocal(voucherId);
+            } else {
+                soldOut.remove(voucherId);
+            }
+        }, new ChannelTopic(RedisConstants.SECKILL_SOLD_OUT_CHANNEL));
+    }
+
+    public boolean isSoldOut(Long voucherId) {
+        Long expireAt = soldOut.get(voucherId);
+        if (expireAt == null) {
+            return false;
+        }
+        if (expireAt < System.currentTimeMillis()) {
+            soldOut.remove(voucherId, expireAt);
+            return false;
+        }
+        rejected.increment();
+        return true;
+    }
+
+    // 标记售罄，并通知其他节点
+    public void markSoldOut(Long voucherId) {
+        // 本节点已经标记过了，说明已经通知过
+        Long expireAt = soldOut.get(voucherId);
+        if (expireAt != null && expireAt > System.currentTimeMillis()) {
+            return;
+        }
+        markLocal(voucherId);
+        stringRedisTemplate.convertAndSend(RedisConstants.SECKILL_SOLD_OUT_CHANNEL, SOLD_OUT + "|" + voucherId);
+    }
+
+    // 补充了库存，清除所有节点的售罄标记
+    public void clear(Long voucherId) {
+        soldOut.remove(voucherId);
+        stringRedisTemplate.convertAndSend(RedisConstants.SECKILL_SOLD_OUT_CHANNEL, RESTOCK + "|" + voucherId);
+    }
+
+    private void markLocal(Long voucherId) {
+        soldOut.put(voucherId, System.currentTimeMillis() + ttlSeconds * 1000);
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new HashMap<>();
+        stats.put("soldOutVouchers", soldOut.keySet());
+        stats.put("rejected", rejected.sum());
+        return stats;
+    }
+}
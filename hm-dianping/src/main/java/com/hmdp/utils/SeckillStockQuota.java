@@ -0,0 +1,228 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+// 本节点的库存配额：超热门优惠券每个节点一次从redis租一批库存，之后在本地原子计数器上扣减
+//  1. 扣减库存不再访问redis，一人一单、限流仍然在lua脚本里判断（带上prepaid=2跳过库存）
+//  2. 剩余不到lowRatio时后台再租一批，租不到时一小段时间内不再重试
+//  3. 秒杀结束或者节点停机时把没用完的配额还给redis；节点宕机没还的配额会少卖，不会超卖
+@Slf4j
+@Component
+public class SeckillStockQuota {
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private SeckillVoucherMetaCache metaCache;
+
+    @Value("${hmdp.seckill.quota.enabled:false}")
+    private boolean enabled;
+
+    // 每次租用的库存数量
+    @Value("${hmdp.seckill.quota.block-size:50}")
+    private int blockSize;
+
+    // 剩余配额低于这个比例时提前续租
+    @Value("${hmdp.seckill.quota.low-ratio:0.2}")
+    private double lowRatio;
+
+    // redis中也没有库存时，多久之后再去租
+    @Value("${hmdp.seckill.quota.retry-millis:100}")
+    private long retryMillis;
+
+    private final Map<Long, Quota> quotas = new ConcurrentHashMap<>();
+
+    private ScheduledExecutorService executor;
+
+    private final LongAdder leased = new LongAdder();   // 从redis租到的库存总数
+    private final LongAdder returned = new LongAdder(); // 还给redis的库存总数
+
+    private final static DefaultRedisScript<Long> SeckillTakeScript;
+
+    static {
+        SeckillTakeScript = new DefaultRedisScript<>();
+        SeckillTakeScript.setLocation(new ClassPathResource("seckill_take.lua"));
+        SeckillTakeScript.setResultType(Long.class);
+    }
+
+    @PostConstruct
+    private void init() {
+        if (!enabled) {
+            return;
+        }
+        executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "seckill-quota");
+            thread.setDaemon(true);
+            return thread;
+        });
+        // 定期把已经结束的秒杀券的配额还回去
+        executor.scheduleWithFixedDelay(this::releaseEnded, 1, 1, TimeUnit.SECONDS);
+    }
+
+    // 停机时把配额都还回去，这时已经不再接收秒杀请求了
+    @PreDestroy
+    private void destroy() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+        quotas.keySet().forEach(this::releaseAll);
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    // 从本地配额扣一个库存，配额用完时同步租一批，redis也没有库存时返回false
+    public boolean tryAcquire(Long voucherId, int shards) {
+        Quota quota = quotas.computeIfAbsent(voucherId, id -> new Quota(shards));
+        while (true) {
+            long remaining = quota.remaining.get();
+            if (remaining > 0) {
+                if (quota.remaining.compareAndSet(remaining, remaining - 1)) {
+                    // 快用完了，后台提前续租，不让请求线程等待
+                    if (remaining - 1 < blockSize * lowRatio && quota.refilling.compareAndSet(false, true)) {
+                        executor.execute(() -> {
+                            try {
+                                lease(voucherId, quota);
+                            } finally {
+                                quota.refilling.set(false);
+                            }
+                        });
+                    }
+                    return true;
+                }
+                continue;
+            }
+            // 配额用完了，同一时间只有一个线程去租，其他线程等它的结果
+            synchronized (quota) {
+                if (quota.remaining.get() > 0) {
+                    continue;
+                }
+                if (System.currentTimeMillis() < quota.retryAt || lease(voucherId, quota) == 0) {
+                    return false;
+                }
+            }
+        }
+    }
+
+    // 拿到了库存但没有下单成功（重复下单、被限流），把库存还给本地配额
+    public void release(Long voucherId, int shards) {
+        Quota quota = quotas.get(voucherId);
+        if (quota != null) {
+            quota.remaining.incrementAndGet();
+            // 这期间配额已经被还回redis了，刚加上的库存也要还回去
+            if (!quota.closed) {
+                return;
+            }
+            synchronized (quota) {
+                if (quota.remaining.getAndSet(0) == 0) {
+                    return;
+                }
+            }
+        }
+        stringRedisTemplate.opsForValue().increment(SeckillKeys.stockKey(voucherId, shards, 0));
+        returned.increment();
+    }
+
+    // 从一个随机分片开始，依次尝试租一批库存，已经还回去的配额不再续租
+    private long lease(Long voucherId, Quota quota) {
+        synchronized (quota) {
+            if (quota.closed) {
+                return 0;
+            }
+            try {
+                int start = ThreadLocalRandom.current().nextInt(quota.shards);
+                for (int i = 0; i < quota.shards; i++) {
+                    int shard = (start + i) % quota.shards;
+                    Long taken = stringRedisTemplate.execute(SeckillTakeScript,
+                            Collections.singletonList(SeckillKeys.stockKey(voucherId, quota.shards, shard)), String.valueOf(blockSize));
+                    if (taken != null && taken > 0) {
+                        quota.lastShard = shard;
+                        quota.remaining.addAndGet(taken);
+                        leased.add(taken);
+                        return taken;
+                    }
+                }
+            } catch (Exception e) {
+                log.error("租用秒杀库存失败，voucherId={}", voucherId, e);
+            }
+            quota.retryAt = System.currentTimeMillis() + retryMillis;
+            return 0;
+        }
+    }
+
+    private void releaseEnded() {
+        long now = System.currentTimeMillis();
+        for (Long voucherId : quotas.keySet()) {
+            try {
+                if (metaCache.get(voucherId).ended(now)) {
+                    releaseAll(voucherId);
+                }
+            } catch (Exception e) {
+                log.error("归还秒杀库存失败，voucherId={}", voucherId, e);
+            }
+        }
+    }
+
+    // 先从map里移除，之后的请求会看到新的空配额；剩余的库存原子地取走，还给最后租用的分片
+    private void releaseAll(Long voucherId) {
+        Quota quota = quotas.remove(voucherId);
+        if (quota == null) {
+            return;
+        }
+        long remaining;
+        synchronized (quota) {
+            quota.closed = true;
+            remaining = quota.remaining.getAndSet(0);
+        }
+        if (remaining > 0) {
+            stringRedisTemplate.opsForValue().increment(SeckillKeys.stockKey(voucherId, quota.shards, quota.lastShard), remaining);
+            returned.add(remaining);
+            log.info("归还秒杀库存配额，voucherId={}，数量{}", voucherId, remaining);
+        }
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new HashMap<>();
+        Map<Long, Long> remaining = new HashMap<>();
+        quotas.forEach((voucherId, quota) -> remaining.put(voucherId, quota.remaining.get()));
+        stats.put("remaining", remaining);
+        stats.put("leased", leased.sum());
+        stats.put("returned", returned.sum());
+        return stats;
+    }
+
+    private static class Quota {
+        private final int shards;
+        private final AtomicLong remaining = new AtomicLong();
+        private final AtomicBoolean refilling = new AtomicBoolean();
+        private volatile int lastShard;
+        private volatile long retryAt; // 租不到库存时，这个时间之前不再重试
+        private volatile boolean closed; // 已经还回redis，不能再续租
+
+        private Quota(int shards) {
+            this.shards = Math.max(1, shards);
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.mapper.SeckillVoucherMapper;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_META_KEY;
+
+// 秒杀优惠券元数据（库存分片数、开始和结束时间）的本地缓存
+//  1. 创建秒杀券时写入redis：seckill:meta:{id} 保存全部信息，每个库存分片旁边的 seckill:time:* 保存时间窗口，给lua脚本判断
+//  2. 请求进来先用本地缓存判断时间，没开始或已结束的请求不会访问redis
+//  3. redis中没有元数据的旧优惠券，第一次用到时从数据库加载并补写到redis
+@Component
+public class SeckillVoucherMetaCache {
+
+    private static final Meta NOT_FOUND = new Meta(false, 1, 0, 0);
+
+    private static final long NOT_FOUND_TTL_MILLIS = 5000;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private SeckillVoucherMapper seckillVoucherMapper;
+
+    @Value("${hmdp.seckill.meta-ttl-seconds:60}")
+    private long ttlSeconds;
+
+    // 秒杀结束后下单记录再保留多久，超时取消订单时还要用它回滚，所以要比支付超时长
+    @Value("${hmdp.seckill.buyer-retain-hours:24}")
+    private long buyerRetainHours;
+
+    private final Map<Long, Entry> cache = new ConcurrentHashMap<>();
+
+    public Meta get(Long voucherId) {
+        long now = System.currentTimeMillis();
+        Entry entry = cache.get(voucherId);
+        if (entry != null && entry.expireAt > now) {
+            return entry.meta;
+        }
+        Meta meta = load(voucherId);
+        // 不存在的优惠券只缓存一小会，其他节点刚创建的秒杀券很快就能用
+        cache.put(voucherId, new Entry(meta, now + (meta.exists ? ttlSeconds * 1000 : NOT_FOUND_TTL_MILLIS)));
+        return meta;
+    }
+
+    // 写入元数据，并更新本节点的缓存
+    public void save(Long voucherId, int shards, LocalDateTime beginTime, LocalDateTime endTime) {
+        long begin = toMillis(beginTime);
+        long end = toMillis(endTime);
+        Map<String, String> meta = new HashMap<>();
+        meta.put("shards", String.valueOf(shards));
+        meta.put("begin", String.valueOf(begin));
+        meta.put("end", String.valueOf(end));
+        stringRedisTemplate.opsForHash().putAll(SECKILL_META_KEY + voucherId, meta);
+
+        Map<String, String> window = new HashMap<>();
+        window.put("begin", String.valueOf(begin));
+        window.put("end", String.valueOf(end));
+        for (int i = 0; i < shards; i++) {
+            stringRedisTemplate.opsForHash().putAll(SeckillKeys.timeKey(voucherId, shards, i), window);
+        }
+        cache.put(voucherId, new Entry(new Meta(true, shards, begin, end), System.currentTimeMillis() + ttlSeconds * 1000));
+    }
+
+    // 下单记录的过期时间点，没有结束时间的优惠券不过期
+    public long buyerExpireAt(Meta meta) {
+        return meta.getEndMillis() > 0 ? meta.getEndMillis() + TimeUnit.HOURS.toMillis(buyerRetainHours) : 0;
+    }
+
+    private Meta load(Long voucherId) {
+        List<Object> values = stringRedisTemplate.opsForHash().multiGet(SECKILL_META_KEY + voucherId, Arrays.asList("shards", "begin", "end"));
+        if (values.get(0) != null) {
+            return new Meta(true,
+                    Integer.parseInt(values.get(0).toString()),
+                    Long.parseLong(values.get(1).toString()),
+                    Long.parseLong(values.get(2).toString()));
+        }
+
+        // 旧优惠券：从数据库加载时间，分片之前创建的优惠券库存只有一个key
+        SeckillVoucher voucher = seckillVoucherMapper.selectById(voucherId);
+        if (voucher == null) {
+            return NOT_FOUND;
+        }
+        save(voucherId, 1, voucher.getBeginTime(), voucher.getEndTime());
+        return cache.get(voucherId).meta;
+    }
+
+    private static long toMillis(LocalDateTime time) {
+        return time == null ? 0 : time.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+
+    @AllArgsConstructor
+    private static class Entry {
+        private final Meta meta;
+        private final long expireAt;
+    }
+
+    @Getter
+    @AllArgsConstructor
+    public static class Meta {
+        private final boolean exists;
+        private final int shards;
+        private final long beginMillis; // 0表示不限制
+        private final long endMillis;   // 0表示不限制
+
+        public boolean notStarted(long now) {
+            return beginMillis > 0 && now < beginMillis;
+        }
+
+        public boolean ended(long now) {
+            return endMillis > 0 && now > endMillis;
+        }
+    }
+}
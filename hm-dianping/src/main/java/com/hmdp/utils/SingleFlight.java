@@ -0,0 +1,76 @@
+package com.hmdp.utils;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+// 请求合并：同一个key同时只有一个线程去加载，其他线程等待它的结果
+//  缓存失效的瞬间，同一节点上的并发请求只会查一次数据库
+public class SingleFlight {
+
+    private final Map<String, CompletableFuture<Object>> inFlight = new ConcurrentHashMap<>();
+
+    private final LongAdder loads = new LongAdder();     // 真正执行加载的次数
+    private final LongAdder coalesced = new LongAdder(); // 被合并、等待别人结果的次数
+    private final LongAdder timeouts = new LongAdder();  // 等待超时、改为自己加载的次数
+
+    @SuppressWarnings("unchecked")
+    public <T> T execute(String key, Supplier<T> loader, long timeout, TimeUnit unit) {
+        // 1. 尝试成为这个key的加载者
+        CompletableFuture<Object> future = new CompletableFuture<>();
+        CompletableFuture<Object> existing = inFlight.putIfAbsent(key, future);
+
+        // 2. 已经有线程在加载了，等待它的结果
+        //  等待超时说明加载者卡住了（例如慢查询），不再等它，自己加载一次，不登记到inFlight
+        if (existing != null) {
+            coalesced.increment();
+            try {
+                return (T) await(existing, timeout, unit);
+            } catch (TimeoutException e) {
+                timeouts.increment();
+                loads.increment();
+                return loader.get();
+            }
+        }
+
+        // 3. 自己负责加载，结束后把结果交给等待的线程
+        loads.increment();
+        try {
+            T value = loader.get();
+            future.complete(value);
+            return value;
+        } catch (RuntimeException e) {
+            future.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, future);
+        }
+    }
+
+    private Object await(CompletableFuture<Object> future, long timeout, TimeUnit unit) throws TimeoutException {
+        try {
+            return future.get(timeout, unit);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof RuntimeException ? (RuntimeException) cause : new RuntimeException(cause);
+        }
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new HashMap<>();
+        stats.put("loads", loads.sum());
+        stats.put("coalesced", coalesced.sum());
+        stats.put("timeouts", timeouts.sum());
+        stats.put("inFlight", inFlight.size());
+        return stats;
+    }
+}
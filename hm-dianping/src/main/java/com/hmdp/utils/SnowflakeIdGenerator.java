@@ -0,0 +1,120 @@
+package com.hmdp.utils;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+// 雪花算法id：1位符号 + 1位标记 + 40位毫秒时间戳 + 10位workerId + 12位序列号，生成时不需要访问网络
+//  1. 标记位固定为1，和RedisWorker“秒级时间戳 << 32 | 序列号”格式的id不会重叠，两种模式可以切换
+//  2. workerId由 SnowflakeWorkerLease 在redis中租用，保证同一时间不会有两个节点使用同一个workerId
+//  3. 同一毫秒内序列号用完时等到下一毫秒；时钟小幅回拨时等待追上，大幅回拨时沿用上一次的时间戳继续发号，id始终递增
+public class SnowflakeIdGenerator {
+
+    private static final long EPOCH_MILLIS = 1735689600_000L; // 起始时间，和RedisWorker一致（2025年1月1号0点0分0时）
+
+    private static final long SEQUENCE_BITS = 12L;
+    private static final long WORKER_BITS = 10L;
+    private static final long TIMESTAMP_BITS = 40L;
+
+    public static final long MAX_WORKER_ID = (1L << WORKER_BITS) - 1;
+    private static final long SEQUENCE_MASK = (1L << SEQUENCE_BITS) - 1;
+    private static final long MAX_TIMESTAMP = (1L << TIMESTAMP_BITS) - 1;
+    private static final long FLAG = 1L << 62;
+
+    private final LongSupplier clock;
+
+    private final long maxBackwardMillis; // 回拨不超过这个时间就等待时钟追上
+
+    private long workerId; // -1 表示租约丢失，暂时不能发号
+
+    private long lastTimestamp = -1;
+
+    private long sequence;
+
+    private final LongAdder rollbacks = new LongAdder();  // 时钟回拨次数
+    private final LongAdder exhausted = new LongAdder();  // 一毫秒内序列号用完的次数
+
+    public SnowflakeIdGenerator(long workerId) {
+        this(workerId, 5, System::currentTimeMillis);
+    }
+
+    public SnowflakeIdGenerator(long workerId, long maxBackwardMillis, LongSupplier clock) {
+        setWorkerId(workerId);
+        this.maxBackwardMillis = maxBackwardMillis;
+        this.clock = clock;
+    }
+
+    public synchronized long nextId() {
+        if (workerId < 0) {
+            throw new IllegalStateException("workerId租约已丢失，暂时无法生成id");
+        }
+        long now = clock.getAsLong();
+
+        // 1. 时钟回拨
+        if (now < lastTimestamp) {
+            rollbacks.increment();
+            now = lastTimestamp - now <= maxBackwardMillis ? waitUntil(lastTimestamp) : lastTimestamp;
+        }
+
+        // 2. 同一毫秒内递增序列号，用完了就换到下一毫秒
+        if (now == lastTimestamp) {
+            sequence = (sequence + 1) & SEQUENCE_MASK;
+            if (sequence == 0) {
+                exhausted.increment();
+                now = nextMillis(lastTimestamp);
+            }
+        } else {
+            sequence = 0;
+        }
+        lastTimestamp = now;
+
+        long timestamp = now - EPOCH_MILLIS;
+        if (timestamp > MAX_TIMESTAMP) {
+            throw new IllegalStateException("时间戳超出范围");
+        }
+        return FLAG | timestamp << (WORKER_BITS + SEQUENCE_BITS) | workerId << SEQUENCE_BITS | sequence;
+    }
+
+    // 租约丢失后重新租到了新的workerId
+    public synchronized void setWorkerId(long workerId) {
+        if (workerId > MAX_WORKER_ID) {
+            throw new IllegalArgumentException("workerId超出范围：" + workerId);
+        }
+        this.workerId = workerId;
+    }
+
+    private long waitUntil(long target) {
+        long now = clock.getAsLong();
+        while (now < target) {
+            Thread.yield();
+            now = clock.getAsLong();
+        }
+        return now;
+    }
+
+    private long nextMillis(long last) {
+        long now = clock.getAsLong();
+        // 时钟还落后于上一次的时间戳（大幅回拨过），等不到下一毫秒，直接借用
+        if (now < last) {
+            return last + 1;
+        }
+        while (now <= last) {
+            Thread.yield();
+            now = clock.getAsLong();
+        }
+        return now;
+    }
+
+    public static long workerIdOf(long id) {
+        return id >>> SEQUENCE_BITS & MAX_WORKER_ID;
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new HashMap<>();
+        stats.put("workerId", workerId);
+        stats.put("rollbacks", rollbacks.sum());
+        stats.put("exhausted", exhausted.sum());
+        return stats;
+    }
+}
@@ -0,0 +1,107 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.UUID;
+import cn.hutool.core.util.BooleanUtil;
+import cn.hutool.core.util.RandomUtil;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+
+import java.util.Collections;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongConsumer;
+
+// 在redis中租用雪花算法的workerId：SET snowflake:worker:{id} token NX EX lease
+//  1. 启动时从随机位置开始找一个没被占用的workerId
+//  2. 每隔1/3租期续约一次，续约失败（比如长时间GC导致过期）就重新租一个，期间暂停发号
+//  3. 正常关闭时释放，异常退出的节点等租约过期后workerId才会被复用
+@Slf4j
+public class SnowflakeWorkerLease {
+
+    private final static DefaultRedisScript<Long> renewRedisScript;
+
+    private final static DefaultRedisScript<Long> unlockRedisScript;
+
+    static {
+        renewRedisScript = new DefaultRedisScript<>();
+        renewRedisScript.setLocation(new ClassPathResource("lease_renew.lua"));
+        renewRedisScript.setResultType(Long.class);
+
+        unlockRedisScript = new DefaultRedisScript<>();
+        unlockRedisScript.setLocation(new ClassPathResource("unlock.lua"));
+        unlockRedisScript.setResultType(Long.class);
+    }
+
+    private final StringRedisTemplate stringRedisTemplate;
+
+    private final long leaseSeconds;
+
+    private final String token = UUID.randomUUID().toString(true);
+
+    private volatile long workerId = -1;
+
+    private ScheduledExecutorService renewer;
+
+    public SnowflakeWorkerLease(StringRedisTemplate stringRedisTemplate, long leaseSeconds) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.leaseSeconds = leaseSeconds;
+    }
+
+    // 租用一个workerId，全部被占用时返回-1
+    public long acquire() {
+        int size = (int) SnowflakeIdGenerator.MAX_WORKER_ID + 1;
+        int start = RandomUtil.randomInt(size);
+        for (int i = 0; i < size; i++) {
+            long id = (start + i) % size;
+            Boolean success = stringRedisTemplate.opsForValue()
+                    .setIfAbsent(RedisConstants.SNOWFLAKE_WORKER_KEY + id, token, leaseSeconds, TimeUnit.SECONDS);
+            if (BooleanUtil.isTrue(success)) {
+                workerId = id;
+                log.info("租用雪花算法workerId={}", id);
+                return id;
+            }
+        }
+        workerId = -1;
+        return -1;
+    }
+
+    // 定时续约，workerId变化时（重新租用或者租不到）通知调用方
+    public void startRenewal(LongConsumer onChanged) {
+        renewer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "snowflake-lease");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long period = Math.max(1, leaseSeconds / 3);
+        renewer.scheduleWithFixedDelay(() -> {
+            try {
+                if (workerId >= 0 && renew()) {
+                    return;
+                }
+                log.error("雪花算法workerId={}续约失败，重新租用", workerId);
+                onChanged.accept(-1);
+                onChanged.accept(acquire());
+            } catch (Exception e) {
+                log.error("雪花算法workerId续约异常", e);
+            }
+        }, period, period, TimeUnit.SECONDS);
+    }
+
+    private boolean renew() {
+        Long result = stringRedisTemplate.execute(renewRedisScript,
+                Collections.singletonList(RedisConstants.SNOWFLAKE_WORKER_KEY + workerId), token, String.valueOf(leaseSeconds));
+        return result != null && result == 1;
+    }
+
+    public void release() {
+        if (renewer != null) {
+            renewer.shutdownNow();
+        }
+        if (workerId >= 0) {
+            stringRedisTemplate.execute(unlockRedisScript, Collections.singletonList(RedisConstants.SNOWFLAKE_WORKER_KEY + workerId), token);
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package com.hmdp.utils;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+// 本地令牌桶，用GCRA算法实现：只保存“下一个令牌的理论到达时间”，一次CAS完成判断，不加锁
+//  桶满时最多允许 burst 个请求同时通过，之后按 permitsPerSecond 的速率放行
+public class TokenBucket {
+
+    private final long intervalNanos;  // 生成一个令牌的时间
+
+    private final long burstNanos;     // 桶的容量对应的时间
+
+    private final LongSupplier clock;
+
+    private final AtomicLong theoreticalArrival;
+
+    public TokenBucket(double permitsPerSecond, long burst) {
+        this(permitsPerSecond, burst, System::nanoTime);
+    }
+
+    public TokenBucket(double permitsPerSecond, long burst, LongSupplier clock) {
+        this.intervalNanos = (long) (1e9 / permitsPerSecond);
+        this.burstNanos = intervalNanos * Math.max(1, burst);
+        this.clock = clock;
+        this.theoreticalArrival = new AtomicLong(clock.getAsLong());
+    }
+
+    public boolean tryAcquire() {
+        long now = clock.getAsLong();
+        while (true) {
+            long tat = theoreticalArrival.get();
+            long next = Math.max(tat, now) + intervalNanos;
+            // 超出了桶的容量，令牌不够
+            if (next - now > burstNanos) {
+                return false;
+            }
+            if (theoreticalArrival.compareAndSet(tat, next)) {
+                return true;
+            }
+        }
+    }
+}
@@ -0,0 +1,9 @@
+-- 从延迟队列中领取到期的元素
+-- 键：延迟队列（zset，分数是到期时间）；参数：当前时间（毫秒）、最多领取的数量、处理超时时间（毫秒）
+--  领取时不删除，而是把分数推迟到处理超时之后：处理完再删除，节点中途挂了，超时后会被重新领取
+local now = tonumber(ARGV[1])
+local ids = redis.call("zrangebyscore", KEYS[1], "-inf", now, "limit", 0, tonumber(ARGV[2]))
+for i = 1, #ids do
+    redis.call("zadd", KEYS[1], now + tonumber(ARGV[3]), ids[i])
+end
+return ids
@@ -1,31 +1,119 @@
--- 参数：订单ID、用户ID
-local voucherId = ARGV[1]
+-- 键：库存、下单用户集合、时间窗口、集群令牌桶、用户限流计数、下单用户位图、订单stream
+--  分片时传入的都是用户主分片的key，带同一个hash tag，在Redis Cluster中落在同一个slot
+--  订单状态和库存不在同一个slot，由调用方在脚本成功之后再写
+--  分片时主分片没有库存，调用方先从其他分片扣到一个库存，再带上prepaid=1调用
+--  开启本地库存配额时，库存已经在节点本地扣过了，带上prepaid=2调用：只跳过库存，限流照常判断
+local stock_key = KEYS[1]
+local order_key = KEYS[2]
+local time_key = KEYS[3]
+local limit_key = KEYS[4]
+local user_limit_key = KEYS[5]
+local buyer_key = KEYS[6]
+local stream_key = KEYS[7]
+
+-- 参数：优惠券ID、用户ID、库存是否已经扣过（0没有、1从其他分片扣过、2从本地配额扣过）、
+--  令牌桶每秒生成的令牌数和容量（小于等于0表示不限流）、每个用户在一个窗口内最多请求次数和窗口长度（毫秒）、
+--  下单用户的记录方式（set或bitmap）、下单记录的过期时间点（毫秒，0表示不过期）、
+--  订单id（stream模式下由调用方提前生成，和扣库存一起写入stream；为空表示memory模式，不写stream）、
+--  位图记录的最大用户ID
 local userId = ARGV[2]
+local prepaid = ARGV[3] ~= "0"
+local limited = ARGV[3] ~= "1"  -- prepaid=1是同一个请求第二次调用，第一次已经限流过了
+local rate = tonumber(ARGV[4])
+local burst = tonumber(ARGV[5])
+local user_max = tonumber(ARGV[6])
+local user_window = tonumber(ARGV[7])
+-- 用户id是连续的整数，用位图记录下单用户比set省一个数量级的内存
+--  位图的长度由最大的偏移量决定，一个很大的id就会分配出几百MB的字符串，所以超过配置上限的id仍然用set
+--  GETBIT不会扩展位图，偏移量上限以内的id都可以查位图（上限调小之前写进位图的记录也能查到）
+local fits_bitmap = tonumber(userId) < 4294967296
+local buyer_expire_at = tonumber(ARGV[9]) or 0
+local orderId = ARGV[10] or ""
+local bitmap_max_id = tonumber(ARGV[11]) or 0
+local use_bitmap = ARGV[8] == "bitmap" and fits_bitmap and tonumber(userId) <= bitmap_max_id
 
--- 键
-local stock_key = "seckill:stock:" .. voucherId
-local order_key = "seckill:order:" .. voucherId
+-- 判断秒杀时间（毫秒），没有时间窗口的旧数据不限制
+-- 脚本里用了TIME命令，需要按效果复制（redis 5之后默认如此）
+if (redis.replicate_commands ~= nil) then
+    redis.replicate_commands()
+end
+local window = redis.call("hmget", time_key, "begin", "end")
+local time = redis.call("time")
+local now = tonumber(time[1]) * 1000 + math.floor(tonumber(time[2]) / 1000)
+if (window[1] and tonumber(window[1]) > 0 and now < tonumber(window[1])) then
+    return 4   -- 秒杀尚未开始
+end
+if (window[2] and tonumber(window[2]) > 0 and now > tonumber(window[2])) then
+    return 5   -- 秒杀已经结束
+end
 
--- 获取库存
-local stock = redis.call("get", stock_key)
-if (stock == false) then
-    return 3   -- 表示库存数据不存在
+if (limited) then
+    -- 用户限流：固定窗口计数，超过次数直接拒绝，不消耗集群令牌
+    if (user_max > 0) then
+        local count = redis.call("incr", user_limit_key)
+        if (count == 1) then
+            redis.call("pexpire", user_limit_key, user_window)
+        end
+        if (count > user_max) then
+            return 7   -- 用户请求过于频繁
+        end
+    end
+
+    -- 集群令牌桶：按经过的时间补充令牌，不够一个就拒绝
+    if (rate > 0) then
+        local bucket = redis.call("hmget", limit_key, "tokens", "ts")
+        local tokens = tonumber(bucket[1]) or burst
+        local ts = tonumber(bucket[2]) or now
+        tokens = math.min(burst, tokens + math.max(0, now - ts) * rate / 1000)
+        if (tokens < 1) then
+            return 6   -- 系统繁忙
+        end
+        redis.call("hset", limit_key, "tokens", tokens - 1, "ts", now)
+        redis.call("pexpire", limit_key, math.ceil(burst / rate * 1000) + 1000)
+    end
 end
 
--- 判断库存是否充足
-if (tonumber(stock) < 1) then
-    return 1
+if (not prepaid) then
+    -- 获取库存
+    local stock = redis.call("get", stock_key)
+    if (stock == false) then
+        return 3   -- 表示库存数据不存在
+    end
+
+    -- 判断库存是否充足
+    if (tonumber(stock) < 1) then
+        return 1
+    end
 end
 
--- 判断用户是否下单
+-- 判断用户是否下单，位图和set都要看：切换方式、迁移的过程中两边都可能有记录
+if (fits_bitmap and redis.call("getbit", buyer_key, userId) == 1) then
+    return 2
+end
 if(redis.call("sismember", order_key, userId) == 1) then
     return 2
 end
 
 -- 扣减库存
-redis.call("incrby", stock_key, -1)
+if (not prepaid) then
+    redis.call("incrby", stock_key, -1)
+end
+
+-- 记录下单用户，秒杀结束一段时间后自动过期
+local buyer = order_key
+if (use_bitmap) then
+    buyer = buyer_key
+    redis.call("setbit", buyer_key, userId, 1)
+else
+    redis.call("sadd", order_key, userId)
+end
+if (buyer_expire_at > 0) then
+    redis.call("pexpireat", buyer, buyer_expire_at)
+end
 
--- 将userId存入当前优惠券的set集合
-redis.call("sadd", order_key, userId)
+-- stream模式：订单消息和扣库存、记录下单用户在同一个脚本里，不会出现扣了库存却没有订单的情况
+if (orderId ~= "") then
+    redis.call("xadd", stream_key, "*", "userId", userId, "voucherId", ARGV[1], "id", orderId)
+end
 
-return 0
\ No newline at end of file
+return 0
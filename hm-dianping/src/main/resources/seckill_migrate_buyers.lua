@@ -0,0 +1,15 @@
+-- 把下单用户从set迁移到位图，每个用户的移除和置位在同一个脚本里完成，不会和回滚交错
+-- 键：下单用户集合、下单用户位图；参数：过期时间点（毫秒，0表示不过期）、位图记录的最大用户ID、用户ID...
+--  超过最大用户ID的留在set里，避免一个很大的id让位图分配出巨大的字符串
+local max_id = tonumber(ARGV[2])
+local moved = 0
+for i = 3, #ARGV do
+    if (tonumber(ARGV[i]) <= max_id and redis.call("srem", KEYS[1], ARGV[i]) == 1) then
+        redis.call("setbit", KEYS[2], ARGV[i], 1)
+        moved = moved + 1
+    end
+end
+if (moved > 0 and tonumber(ARGV[1]) > 0) then
+    redis.call("pexpireat", KEYS[2], ARGV[1])
+end
+return moved
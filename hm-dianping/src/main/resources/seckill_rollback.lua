@@ -0,0 +1,14 @@
+-- 回滚一次秒杀：还回库存，并把用户从下单记录中移除（订单没能进入队列、订单超时取消时使用）
+-- 键：库存、下单用户集合、下单用户位图；参数：用户ID
+--  用户已经不在下单记录里，说明已经回滚过了，不再还库存，重复执行是安全的
+local removed = redis.call("srem", KEYS[2], ARGV[1])
+-- 先GETBIT再清零，位图不存在时SETBIT会创建一个全0的位图；只清零已经置位的偏移量，不会让位图变长
+if (tonumber(ARGV[1]) < 4294967296 and redis.call("getbit", KEYS[3], ARGV[1]) == 1) then
+    redis.call("setbit", KEYS[3], ARGV[1], 0)
+    removed = 1
+end
+if (removed == 0) then
+    return 0
+end
+redis.call("incrby", KEYS[1], 1)
+return 1
@@ -0,0 +1,8 @@
+-- 从某个库存分片扣减库存，最多扣ARGV[1]个（不传就是1个），返回实际扣到的数量，没有库存返回0
+local stock = tonumber(redis.call("get", KEYS[1]) or "0")
+local take = math.min(tonumber(ARGV[1] or "1"), stock)
+if (take < 1) then
+    return 0
+end
+redis.call("incrby", KEYS[1], -take)
+return take
@@ -0,0 +1,200 @@
+package com.hmdp.aspect;
+
+import com.hmdp.annotation.HmdpCached;
+import com.hmdp.annotation.HmdpEvict;
+import com.hmdp.dto.Result;
+import com.hmdp.dto.ShopVouchersDTO;
+import com.hmdp.entity.Voucher;
+import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.CacheValueSerializer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.aop.aspectj.annotation.AspectJProxyFactory;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.time.LocalDateTime;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+class HmdpCacheAspectTest {
+
+    private CacheClient cacheClient;
+
+    private Target target;
+
+    @BeforeEach
+    void setUp() {
+        cacheClient = mock(CacheClient.class);
+        HmdpCacheAspect aspect = new HmdpCacheAspect();
+        ReflectionTestUtils.setField(aspect, "cacheClient", cacheClient);
+        AspectJProxyFactory factory = new AspectJProxyFactory(new Target());
+        factory.addAspect(aspect);
+        target = factory.getProxy();
+    }
+
+    @AfterEach
+    void tearDown() {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.clearSynchronization();
+        }
+    }
+
+    @Test
+    void cached() {
+        // 把key表达式的值和注解上的参数交给CacheClient，未命中时调用原方法
+        when(cacheClient.get(eq("cache:test:"), eq(1L), eq(Result.class), any(), eq(5L), eq(TimeUnit.MINUTES), eq(true), eq(true)))
+                .thenAnswer(invocation -> invocation.<Function<Object, Object>>getArgument(3).apply(1L));
+        Result result = target.query(1L);
+        assertTrue(result.getSuccess());
+        assertEquals(1L, result.getData());
+    }
+
+    @Test
+    void failedResultNotCached() {
+        // 失败的结果直接返回给调用方，不会抛出异常
+        when(cacheClient.get(eq("cache:test:"), eq(-1L), eq(Result.class), any(), anyLong(), any(), anyBoolean(), anyBoolean()))
+                .thenAnswer(invocation -> invocation.<Function<Object, Object>>getArgument(3).apply(-1L));
+        Result result = target.query(-1L);
+        assertFalse(result.getSuccess());
+    }
+
+    @Test
+    void readBackResult() {
+        // 缓存的值按方法的返回类型读回来，Result 里的 data 不能被当成逻辑过期格式拆开
+        readBackThrough("hutool");
+        Result result = target.queryList(1L);
+        assertTrue(result.getSuccess());
+        List<?> data = (List<?>) result.getData();
+        assertEquals(2, data.size());
+        assertEquals("满100减10", ((Map<?, ?>) data.get(0)).get("title"));
+    }
+
+    @Test
+    void readBackList() {
+        readBackThrough("hutool");
+        List<?> vouchers = target.queryRaw(1L);
+        assertEquals(2, vouchers.size());
+        assertEquals("秒杀券", ((Map<?, ?>) vouchers.get(1)).get("title"));
+    }
+
+    @Test
+    void readBackVouchers() {
+        // 用对象包装的集合，元素按 Voucher 反序列化，时间也能还原
+        for (String format : new String[]{"hutool", "json", "smile"}) {
+            reset(cacheClient);
+            readBackThrough(format);
+            List<Voucher> vouchers = target.queryVouchers(1L).getVouchers();
+            assertEquals(vouchers(), vouchers, format);
+            assertNull(vouchers.get(1).getStock(), format);
+        }
+    }
+
+    @Test
+    void blankKey() {
+        assertThrows(IllegalStateException.class, () -> target.queryWithoutKey(1L, 2L));
+        verifyNoInteractions(cacheClient);
+    }
+
+    @Test
+    void evictWithoutTransaction() {
+        target.update(1L);
+        verify(cacheClient).delete("cache:test:1");
+    }
+
+    @Test
+    void evictAfterCommit() {
+        TransactionSynchronizationManager.initSynchronization();
+        target.update(1L);
+        // 事务提交前不删除
+        verify(cacheClient, never()).delete(anyString());
+
+        for (TransactionSynchronization synchronization : TransactionSynchronizationManager.getSynchronizations()) {
+            synchronization.afterCommit();
+            synchronization.afterCompletion(TransactionSynchronization.STATUS_COMMITTED);
+        }
+        verify(cacheClient).delete("cache:test:1");
+    }
+
+    @Test
+    void evictSkippedOnRollback() {
+        TransactionSynchronizationManager.initSynchronization();
+        target.update(1L);
+        for (TransactionSynchronization synchronization : TransactionSynchronizationManager.getSynchronizations()) {
+            synchronization.afterCompletion(TransactionSynchronization.STATUS_ROLLED_BACK);
+        }
+        verify(cacheClient, never()).delete(anyString());
+    }
+
+    @Test
+    void evictSkippedOnException() {
+        assertThrows(IllegalArgumentException.class, () -> target.updateAndFail(1L));
+        verify(cacheClient, never()).delete(anyString());
+    }
+
+    // 模拟缓存未命中后写入redis、下一次命中时读出来：调用原方法，按指定格式序列化再反序列化
+    private void readBackThrough(String format) {
+        CacheValueSerializer serializer = new CacheValueSerializer(format);
+        when(cacheClient.get(anyString(), any(), any(), any(), anyLong(), any(), anyBoolean(), anyBoolean()))
+                .thenAnswer(invocation -> {
+                    Object value = invocation.<Function<Object, Object>>getArgument(3).apply(invocation.getArgument(1));
+                    return serializer.deserialize(serializer.serialize(value), invocation.getArgument(2));
+                });
+    }
+
+    private static List<Voucher> vouchers() {
+        Voucher voucher = new Voucher().setId(1L).setShopId(1L).setTitle("满100减10").setPayValue(9000L).setActualValue(10000L).setType(0);
+        Voucher seckill = new Voucher().setId(2L).setShopId(1L).setTitle("秒杀券").setPayValue(100L).setActualValue(10000L).setType(1)
+                .setBeginTime(LocalDateTime.of(2022, 1, 26, 10, 9, 17))
+                .setEndTime(LocalDateTime.of(2022, 1, 26, 23, 9, 4));
+        return Arrays.asList(voucher, seckill);
+    }
+
+    static class Target {
+
+        @HmdpCached(prefix = "cache:test:list:", key = "#id")
+        public Result queryList(Long id) {
+            return Result.ok(vouchers());
+        }
+
+        @HmdpCached(prefix = "cache:test:raw:", key = "#id")
+        public List<Voucher> queryRaw(Long id) {
+            return vouchers();
+        }
+
+        @HmdpCached(prefix = "cache:test:vouchers:", key = "#id")
+        public ShopVouchersDTO queryVouchers(Long id) {
+            ShopVouchersDTO dto = new ShopVouchersDTO();
+            dto.setVouchers(vouchers());
+            return dto;
+        }
+
+        @HmdpCached(prefix = "cache:test:", key = "#id", ttl = 5L)
+        public Result query(Long id) {
+            return id > 0 ? Result.ok(id) : Result.fail("不存在");
+        }
+
+        @HmdpCached(prefix = "cache:test:", key = "")
+        public Result queryWithoutKey(Long id, Long other) {
+            return Result.ok(id);
+        }
+
+        @HmdpEvict(prefix = "cache:test:", key = "#id")
+        public void update(Long id) {
+        }
+
+        @HmdpEvict(prefix = "cache:test:", key = "#id")
+        public void updateAndFail(Long id) {
+            throw new IllegalArgumentException();
+        }
+    }
+}
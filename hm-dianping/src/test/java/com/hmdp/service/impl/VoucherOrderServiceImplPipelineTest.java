@@ -0,0 +1,373 @@
+package com.hmdp.service.impl;
+
+import com.hmdp.dto.Result;
+import com.hmdp.dto.UserDTO;
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.service.IVoucherOrderService;
+import com.hmdp.utils.RedisConstants;
+import com.hmdp.utils.RedisDelayQueue;
+import com.hmdp.utils.RedisWorker;
+import com.hmdp.utils.SeckillKeys;
+import com.hmdp.utils.SeckillOrderMetrics;
+import com.hmdp.utils.SeckillSoldOutRegistry;
+import com.hmdp.utils.SeckillStockQuota;
+import com.hmdp.utils.SeckillVoucherMetaCache;
+import com.hmdp.utils.UserHolder;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.data.redis.connection.stream.Record;
+import org.springframework.data.redis.core.HashOperations;
+import org.springframework.data.redis.core.StreamOperations;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+// 秒杀订单管道的单元测试：redis、数据库都用mock代替，只测试本地队列和消费逻辑
+class VoucherOrderServiceImplPipelineTest {
+
+    private VoucherOrderServiceImpl service;
+
+    private IVoucherOrderService proxy;
+
+    private StringRedisTemplate stringRedisTemplate;
+
+    private SeckillOrderMetrics orderMetrics;
+
+    @BeforeEach
+    void setUp() {
+        service = new VoucherOrderServiceImpl();
+        proxy = mock(IVoucherOrderService.class);
+        stringRedisTemplate = mock(StringRedisTemplate.class);
+        orderMetrics = new SeckillOrderMetrics();
+        ReflectionTestUtils.setField(service, "proxy", proxy);
+        ReflectionTestUtils.setField(service, "stringRedisTemplate", stringRedisTemplate);
+        ReflectionTestUtils.setField(service, "orderMetrics", orderMetrics);
+        ReflectionTestUtils.setField(service, "queueMode", "memory");
+        ReflectionTestUtils.setField(service, "partitions", 4);
+        ReflectionTestUtils.setField(service, "queueCapacity", 400);
+        ReflectionTestUtils.setField(service, "batchSize", 10);
+        ReflectionTestUtils.setField(service, "batchMillis", 20L);
+        ReflectionTestUtils.setField(service, "highWatermark", 0.8);
+        ReflectionTestUtils.setField(service, "drainTimeoutSeconds", 5L);
+        ReflectionTestUtils.setField(service, "statusTtlSeconds", 600L);
+        ReflectionTestUtils.invokeMethod(service, "init");
+    }
+
+    @AfterEach
+    void tearDown() {
+        service.stop();
+    }
+
+    @Test
+    void partitionOrdering() throws InterruptedException {
+        // 同一个用户的订单总是进同一个分区，由同一个线程按下单顺序入库
+        Map<Long, List<Long>> persistedIds = new ConcurrentHashMap<>();
+        Map<Long, String> threads = new ConcurrentHashMap<>();
+        doAnswer(invocation -> {
+            List<VoucherOrder> orders = invocation.getArgument(0);
+            for (VoucherOrder order : orders) {
+                persistedIds.computeIfAbsent(order.getUserId(), id -> Collections.synchronizedList(new ArrayList<>())).add(order.getId());
+                String previous = threads.putIfAbsent(order.getUserId(), Thread.currentThread().getName());
+                assertTrue(previous == null || previous.equals(Thread.currentThread().getName()));
+            }
+            return null;
+        }).when(proxy).createOrders(anyList());
+
+        service.start();
+        long orderId = 0;
+        for (int i = 0; i < 20; i++) {
+            for (long userId = 1; userId <= 8; userId++) {
+                enqueue(order(++orderId, userId));
+            }
+        }
+        service.stop();
+
+        assertEquals(8, persistedIds.size());
+        for (List<Long> ids : persistedIds.values()) {
+            assertEquals(20, ids.size());
+            for (int i = 1; i < ids.size(); i++) {
+                assertTrue(ids.get(i - 1) < ids.get(i));
+            }
+        }
+    }
+
+    @Test
+    void batchFallback() {
+        // 整批失败后逐条处理，只有真正有问题的订单算失败，重复入库的算成功
+        VoucherOrder ok = order(1L, 1L);
+        VoucherOrder duplicate = order(2L, 2L);
+        VoucherOrder bad = order(3L, 3L);
+        doThrow(new IllegalStateException("库存不足")).when(proxy).createOrders(anyList());
+        doThrow(new DuplicateKeyException("duplicate")).when(proxy).createOrder(duplicate);
+        doThrow(new IllegalStateException("库存不足")).when(proxy).createOrder(bad);
+
+        List<VoucherOrder> failed = ReflectionTestUtils.invokeMethod(service, "handleOrders", Arrays.asList(ok, duplicate, bad));
+
+        assertEquals(Collections.singletonList(bad), failed);
+        verify(proxy).createOrder(ok);
+        verify(proxy).createOrder(duplicate);
+        verify(proxy).createOrder(bad);
+        Map<String, Object> snapshot = orderMetrics.snapshot();
+        assertEquals(1L, snapshot.get("fallbacks"));
+        assertEquals(2L, snapshot.get("persisted"));
+        assertEquals(1L, snapshot.get("failed"));
+    }
+
+    @Test
+    void batchWithoutFallback() {
+        List<VoucherOrder> orders = Arrays.asList(order(1L, 1L), order(2L, 2L));
+
+        List<VoucherOrder> failed = ReflectionTestUtils.invokeMethod(service, "handleOrders", orders);
+
+        assertTrue(failed.isEmpty());
+        verify(proxy).createOrders(orders);
+        verify(proxy, never()).createOrder(any());
+        assertEquals(1L, orderMetrics.snapshot().get("batches"));
+    }
+
+    @Test
+    void addToTimeoutQueue() {
+        // 入库后按下单时间加上支付时限加入延迟队列
+        RedisDelayQueue timeoutQueue = mockTimeoutQueue();
+        ReflectionTestUtils.setField(service, "payTimeoutMinutes", 15L);
+        LocalDateTime createTime = LocalDateTime.of(2024, 1, 1, 12, 0);
+        VoucherOrder order = order(1L, 1L).setCreateTime(createTime);
+
+        ReflectionTestUtils.invokeMethod(service, "afterPersisted", Collections.singletonList(order));
+
+        long deadline = createTime.plusMinutes(15).atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        verify(timeoutQueue).addAll(Collections.singletonMap("1", deadline));
+    }
+
+    @Test
+    void cancelTimeoutOrders() {
+        // 已支付的订单不在取消结果里，不还库存；处理完整批都从延迟队列删除
+        RedisDelayQueue timeoutQueue = mockTimeoutQueue();
+        SeckillSoldOutRegistry soldOutRegistry = mock(SeckillSoldOutRegistry.class);
+        SeckillVoucherMetaCache metaCache = mock(SeckillVoucherMetaCache.class);
+        ReflectionTestUtils.setField(service, "soldOutRegistry", soldOutRegistry);
+        ReflectionTestUtils.setField(service, "metaCache", metaCache);
+        when(metaCache.get(10L)).thenReturn(new SeckillVoucherMetaCache.Meta(true, 1, 0, 0));
+        List<String> ids = Arrays.asList("1", "2");
+        when(timeoutQueue.claim(anyLong(), eq(10), anyLong())).thenReturn(ids);
+        VoucherOrder unpaid = order(1L, 1L);
+        when(proxy.cancelOrders(Arrays.asList(1L, 2L))).thenReturn(Collections.singletonList(unpaid));
+        doReturn(1L).when(stringRedisTemplate).execute(any(RedisScript.class), anyList(), any());
+
+        ReflectionTestUtils.invokeMethod(service, "cancelTimeoutOrders");
+
+        verify(stringRedisTemplate).execute(any(RedisScript.class),
+                eq(Arrays.asList(SeckillKeys.stockKey(10L, 1, 0), SeckillKeys.orderKey(10L, 1, 0), SeckillKeys.buyerKey(10L, 1, 0))), eq("1"));
+        verify(soldOutRegistry).clear(10L);
+        verify(timeoutQueue).remove(ids);
+        verify(timeoutQueue, times(1)).claim(anyLong(), anyInt(), anyLong());
+    }
+
+    @Test
+    void cancelTimeoutOrdersFailed() {
+        // 取消失败的订单留在延迟队列里，处理超时后会被重新领取
+        RedisDelayQueue timeoutQueue = mockTimeoutQueue();
+        when(timeoutQueue.claim(anyLong(), anyInt(), anyLong())).thenReturn(Collections.singletonList("1"));
+        when(proxy.cancelOrders(anyList())).thenThrow(new IllegalStateException("数据库不可用"));
+
+        ReflectionTestUtils.invokeMethod(service, "cancelTimeoutOrders");
+
+        verify(timeoutQueue, never()).remove(anyCollection());
+    }
+
+    @Test
+    void restoreSeckillFailed() {
+        // 数据库已经取消的订单只回滚一次redis，某个订单回滚失败不影响其他订单，也不会留在延迟队列里重试
+        RedisDelayQueue timeoutQueue = mockTimeoutQueue();
+        SeckillSoldOutRegistry soldOutRegistry = mock(SeckillSoldOutRegistry.class);
+        SeckillVoucherMetaCache metaCache = mock(SeckillVoucherMetaCache.class);
+        ReflectionTestUtils.setField(service, "soldOutRegistry", soldOutRegistry);
+        ReflectionTestUtils.setField(service, "metaCache", metaCache);
+        when(metaCache.get(10L)).thenReturn(new SeckillVoucherMetaCache.Meta(true, 1, 0, 0));
+        List<String> ids = Arrays.asList("1", "2");
+        when(timeoutQueue.claim(anyLong(), eq(10), anyLong())).thenReturn(ids);
+        when(proxy.cancelOrders(Arrays.asList(1L, 2L))).thenReturn(Arrays.asList(order(1L, 1L), order(2L, 2L)));
+        doThrow(new IllegalStateException("redis不可用")).doReturn(1L)
+                .when(stringRedisTemplate).execute(any(RedisScript.class), anyList(), any());
+
+        ReflectionTestUtils.invokeMethod(service, "cancelTimeoutOrders");
+
+        verify(stringRedisTemplate, times(2)).execute(any(RedisScript.class), anyList(), any());
+        verify(soldOutRegistry).clear(10L);
+        verify(timeoutQueue).remove(ids);
+    }
+
+    @Test
+    void startFailed(@TempDir Path dir) throws IOException {
+        // 订单日志打不开时启动失败，不会留下已经在运行的消费线程
+        File notDir = Files.createFile(dir.resolve("journal")).toFile();
+        ReflectionTestUtils.setField(service, "journalEnabled", true);
+        ReflectionTestUtils.setField(service, "journalDir", notDir.getPath());
+        ReflectionTestUtils.setField(service, "journalSegmentMb", 1L);
+
+        assertThrows(IllegalStateException.class, service::start);
+        assertFalse(service.isRunning());
+        assertNull(ReflectionTestUtils.getField(service, "pool"));
+    }
+
+    @Test
+    void drain() throws InterruptedException {
+        // 停机时先拒绝新请求，再把队列里剩下的订单都入库
+        List<Long> persistedIds = Collections.synchronizedList(new ArrayList<>());
+        doAnswer(invocation -> {
+            Thread.sleep(5);
+            List<VoucherOrder> orders = invocation.getArgument(0);
+            orders.forEach(order -> persistedIds.add(order.getId()));
+            return null;
+        }).when(proxy).createOrders(anyList());
+        for (long orderId = 1; orderId <= 300; orderId++) {
+            enqueue(order(orderId, orderId % 16));
+        }
+
+        service.start();
+        service.stop();
+
+        assertFalse(service.isRunning());
+        assertEquals(300, persistedIds.size());
+        queues().forEach(queue -> assertTrue(queue.isEmpty()));
+        assertEquals("系统繁忙，请稍后重试", service.seckill(10L).getErrorMsg());
+        assertEquals(1L, rejected().get("notRunning"));
+    }
+
+    @Test
+    void backpressure() throws InterruptedException {
+        // 分区积压到水位线时，在执行lua脚本之前就拒绝
+        SeckillSoldOutRegistry soldOutRegistry = mock(SeckillSoldOutRegistry.class);
+        SeckillVoucherMetaCache metaCache = mock(SeckillVoucherMetaCache.class);
+        ReflectionTestUtils.setField(service, "soldOutRegistry", soldOutRegistry);
+        ReflectionTestUtils.setField(service, "metaCache", metaCache);
+        ReflectionTestUtils.setField(service, "stockQuota", mock(SeckillStockQuota.class));
+        when(metaCache.get(10L)).thenReturn(new SeckillVoucherMetaCache.Meta(true, 1, 0, 0));
+        doReturn(2L).when(stringRedisTemplate).execute(any(RedisScript.class), anyList(), any());
+        UserDTO user = new UserDTO();
+        user.setId(1L);
+        UserHolder.saveUser(user);
+        // 只设置运行状态，不启动消费线程，队列不会被消费
+        ReflectionTestUtils.setField(service, "running", true);
+        try {
+            // 每个分区容量100，水位线80
+            for (long orderId = 1; orderId <= 80; orderId++) {
+                enqueue(order(orderId, 1L));
+            }
+            Result result = service.seckill(10L);
+            assertEquals("系统繁忙，请稍后重试", result.getErrorMsg());
+            assertEquals(1L, rejected().get("backpressure"));
+            verify(stringRedisTemplate, never()).execute(any(RedisScript.class), anyList(), any());
+
+            // 低于水位线后正常执行lua脚本
+            int partition = ReflectionTestUtils.invokeMethod(service, "partitionOf", 1L);
+            queues().get(partition).poll();
+            result = service.seckill(10L);
+            assertEquals("用户已下单过了", result.getErrorMsg());
+            assertEquals(1L, rejected().get("backpressure"));
+        } finally {
+            ReflectionTestUtils.setField(service, "running", false);
+            UserHolder.removeUser();
+        }
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void streamModeEnqueuesInScript() {
+        // stream模式下订单id在lua脚本之前生成，订单消息由脚本和扣库存一起写入优惠券分片的stream
+        ReflectionTestUtils.setField(service, "queueMode", "stream");
+        SeckillVoucherMetaCache metaCache = mock(SeckillVoucherMetaCache.class);
+        RedisWorker redisWorker = mock(RedisWorker.class);
+        StreamOperations<String, Object, Object> streamOperations = mock(StreamOperations.class);
+        HashOperations<String, Object, Object> hashOperations = mock(HashOperations.class);
+        ReflectionTestUtils.setField(service, "soldOutRegistry", mock(SeckillSoldOutRegistry.class));
+        ReflectionTestUtils.setField(service, "metaCache", metaCache);
+        ReflectionTestUtils.setField(service, "stockQuota", mock(SeckillStockQuota.class));
+        ReflectionTestUtils.setField(service, "redisWorker", redisWorker);
+        ReflectionTestUtils.setField(service, "buyerStore", "bitmap");
+        ReflectionTestUtils.setField(service, "buyerBitmapMaxId", 1000L);
+        when(metaCache.get(10L)).thenReturn(new SeckillVoucherMetaCache.Meta(true, 4, 0, 0));
+        when(redisWorker.nextId("order")).thenReturn(99L);
+        when(stringRedisTemplate.opsForStream()).thenReturn(streamOperations);
+        when(stringRedisTemplate.opsForHash()).thenReturn(hashOperations);
+        List<Object[]> calls = new ArrayList<>();
+        doAnswer(invocation -> {
+            calls.add(invocation.getArguments());
+            return 0L;
+        }).when(stringRedisTemplate).execute(any(RedisScript.class), anyList(), any());
+        UserDTO user = new UserDTO();
+        user.setId(1L);
+        UserHolder.saveUser(user);
+        ReflectionTestUtils.setField(service, "running", true);
+        try {
+            Result result = service.seckill(10L);
+            assertTrue(result.getSuccess());
+            assertEquals(99L, result.getData());
+
+            int home = SeckillKeys.shardOf(1L, 4);
+            String streamKey = SeckillKeys.streamKey(10L, 4, home);
+            verify(hashOperations).put(RedisConstants.SECKILL_STREAM_INDEX_KEY, streamKey, "10");
+            assertEquals(1, calls.size());
+            List<String> keys = (List<String>) calls.get(0)[1];
+            assertEquals(streamKey, keys.get(6));
+            assertEquals("99", calls.get(0)[11]);
+            // 位图的最大userId传给脚本，超过的用set记录
+            assertEquals("1000", calls.get(0)[12]);
+            verify(streamOperations, never()).add(any(Record.class));
+
+            // stream只登记一次
+            service.seckill(10L);
+            verify(hashOperations, times(1)).put(anyString(), any(), any());
+        } finally {
+            ReflectionTestUtils.setField(service, "running", false);
+            UserHolder.removeUser();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private Map<String, Long> rejected() {
+        return (Map<String, Long>) orderMetrics.snapshot().get("rejected");
+    }
+
+    private RedisDelayQueue mockTimeoutQueue() {
+        RedisDelayQueue timeoutQueue = mock(RedisDelayQueue.class);
+        ReflectionTestUtils.setField(service, "timeoutQueue", timeoutQueue);
+        ReflectionTestUtils.setField(service, "timeoutProcessSeconds", 60L);
+        return timeoutQueue;
+    }
+
+    private void enqueue(VoucherOrder order) throws InterruptedException {
+        int partition = ReflectionTestUtils.invokeMethod(service, "partitionOf", order.getUserId());
+        queues().get(partition).put(order);
+    }
+
+    @SuppressWarnings("unchecked")
+    private List<BlockingQueue<VoucherOrder>> queues() {
+        return (List<BlockingQueue<VoucherOrder>>) ReflectionTestUtils.getField(service, "queues");
+    }
+
+    private static VoucherOrder order(Long id, Long userId) {
+        return new VoucherOrder().setId(id).setUserId(userId).setVoucherId(10L);
+    }
+}
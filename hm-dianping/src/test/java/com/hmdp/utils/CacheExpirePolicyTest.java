@@ -0,0 +1,32 @@
+package com.hmdp.utils;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CacheExpirePolicyTest {
+
+    @Test
+    void ttlWithJitter() {
+        CacheExpirePolicy policy = new CacheExpirePolicy();
+        policy.setJitterPercent(10);
+        for (int i = 0; i < 1000; i++) {
+            long ttl = policy.ttlMillis("cache:shop:1", 30L, TimeUnit.MINUTES);
+            assertTrue(ttl >= TimeUnit.MINUTES.toMillis(30) && ttl <= TimeUnit.MINUTES.toMillis(33));
+        }
+    }
+
+    @Test
+    void prefixOverride() {
+        CacheExpirePolicy policy = new CacheExpirePolicy();
+        policy.setJitterPercent(0);
+        policy.getOverrides().put("cache:", 60L);
+        policy.getOverrides().put("cache:shop:", 120L);
+
+        assertEquals(120_000L, policy.ttlMillis("cache:shop:1", 30L, TimeUnit.MINUTES));
+        assertEquals(60_000L, policy.ttlMillis("cache:blog:1", 30L, TimeUnit.MINUTES));
+        assertEquals(TimeUnit.MINUTES.toMillis(30), policy.ttlMillis("chche:shop_type", 30L, TimeUnit.MINUTES));
+    }
+}
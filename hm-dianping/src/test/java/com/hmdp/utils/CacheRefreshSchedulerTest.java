@@ -0,0 +1,94 @@
+package com.hmdp.utils;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ValueOperations;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+class CacheRefreshSchedulerTest {
+
+    private StringRedisTemplate stringRedisTemplate;
+
+    private CacheRefreshScheduler scheduler;
+
+    private final AtomicLong renewResult = new AtomicLong(1);
+
+    @BeforeEach
+    @SuppressWarnings("unchecked")
+    void setUp() {
+        stringRedisTemplate = mock(StringRedisTemplate.class);
+        ValueOperations<String, String> valueOperations = mock(ValueOperations.class);
+        when(stringRedisTemplate.opsForValue()).thenReturn(valueOperations);
+        when(valueOperations.setIfAbsent(anyString(), anyString(), anyLong(), any())).thenReturn(true);
+        // 续约脚本带两个参数（token、有效期），释放锁的脚本只有token
+        doAnswer(invocation -> invocation.getArguments().length == 4 ? renewResult.get() : 1L)
+                .when(stringRedisTemplate).execute(any(RedisScript.class), anyList(), any());
+
+        scheduler = new CacheRefreshScheduler();
+        ReflectionTestUtils.setField(scheduler, "stringRedisTemplate", stringRedisTemplate);
+        ReflectionTestUtils.setField(scheduler, "poolSize", 2);
+        ReflectionTestUtils.setField(scheduler, "queueCapacity", 10);
+        ReflectionTestUtils.setField(scheduler, "lockTtlSeconds", 1L);
+        ReflectionTestUtils.invokeMethod(scheduler, "init");
+    }
+
+    @AfterEach
+    void tearDown() {
+        ReflectionTestUtils.invokeMethod(scheduler, "destroy");
+    }
+
+    @Test
+    void renewWhileRebuilding() throws InterruptedException {
+        // 重建时间超过锁的有效期，期间一直续约，重建完成后不再续约
+        CountDownLatch done = new CountDownLatch(1);
+        assertTrue(scheduler.submit("lock:cache:shop:1", () -> {
+            sleep(1200);
+            done.countDown();
+        }));
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        Thread.sleep(100);
+
+        verify(stringRedisTemplate, atLeast(2)).execute(any(RedisScript.class),
+                eq(Collections.singletonList("lock:cache:shop:1")), anyString(), eq("1"));
+        verify(stringRedisTemplate).execute(any(RedisScript.class), eq(Collections.singletonList("lock:cache:shop:1")), anyString());
+        assertEquals(1L, scheduler.stats().get("completed"));
+        assertEquals(0L, scheduler.stats().get("lockLost"));
+
+        clearInvocations(stringRedisTemplate);
+        Thread.sleep(500);
+        verify(stringRedisTemplate, never()).execute(any(RedisScript.class), anyList(), any(), any());
+    }
+
+    @Test
+    void lockLost() throws InterruptedException {
+        // 锁已经不是自己的，只计数一次，不再续约
+        renewResult.set(0);
+        CountDownLatch done = new CountDownLatch(1);
+        scheduler.submit("lock:cache:shop:1", () -> {
+            sleep(1000);
+            done.countDown();
+        });
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(1L, scheduler.stats().get("lockLost"));
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package com.hmdp.utils;
+
+import cn.hutool.json.JSONUtil;
+import com.hmdp.entity.Shop;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.temporal.ChronoUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CacheValueSerializerTest {
+
+    private Shop shop() {
+        Shop shop = new Shop();
+        shop.setId(1L);
+        shop.setName("103茶餐厅");
+        shop.setX(120.149192);
+        shop.setY(30.316078);
+        shop.setCreateTime(LocalDateTime.of(2021, 12, 22, 18, 10, 39));
+        return shop;
+    }
+
+    @Test
+    void roundTrip() {
+        for (String format : new String[]{"smile", "json", "hutool"}) {
+            CacheValueSerializer serializer = new CacheValueSerializer(format);
+            byte[] bytes = serializer.serialize(shop());
+            assertEquals(shop(), serializer.deserialize(bytes, Shop.class), format);
+        }
+    }
+
+    @Test
+    void logicalRoundTrip() {
+        LocalDateTime expireTime = LocalDateTime.now().plusSeconds(30).truncatedTo(ChronoUnit.MILLIS);
+        for (String format : new String[]{"smile", "json"}) {
+            CacheValueSerializer serializer = new CacheValueSerializer(format);
+            RedisData redisData = serializer.deserializeLogical(serializer.serializeLogical(shop(), expireTime, 15L), Shop.class);
+            assertEquals(shop(), redisData.getData(), format);
+            assertEquals(expireTime, redisData.getExpireTime(), format);
+            assertEquals(15L, redisData.getDelta(), format);
+        }
+    }
+
+    @Test
+    void readLegacyJson() {
+        CacheValueSerializer serializer = new CacheValueSerializer("smile");
+
+        byte[] plain = JSONUtil.toJsonStr(shop()).getBytes(StandardCharsets.UTF_8);
+        assertEquals("103茶餐厅", serializer.deserialize(plain, Shop.class).getName());
+
+        RedisData old = new RedisData();
+        old.setData(shop());
+        old.setExpireTime(LocalDateTime.now());
+        byte[] logical = JSONUtil.toJsonStr(old).getBytes(StandardCharsets.UTF_8);
+        assertEquals("103茶餐厅", ((Shop) serializer.deserializeLogical(logical, Shop.class).getData()).getName());
+    }
+}
@@ -0,0 +1,94 @@
+package com.hmdp.utils;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class IdBloomFilterTest {
+
+    @Test
+    void mightContain() {
+        List<Long> ids = new ArrayList<>();
+        for (long i = 1; i <= 10000; i++) {
+            ids.add(i);
+        }
+        IdBloomFilter bloomFilter = new IdBloomFilter("test", () -> ids, 10000, 0.01);
+        bloomFilter.rebuild();
+
+        // 存在的id一定能判断出来
+        for (Long id : ids) {
+            assertTrue(bloomFilter.mightContain(id));
+        }
+
+        // 不存在的id误判率接近期望值
+        int falsePositive = 0;
+        for (long i = 100001; i <= 200000; i++) {
+            if (bloomFilter.mightContain(i)) {
+                falsePositive++;
+            }
+        }
+        assertTrue(falsePositive < 2000, "falsePositive = " + falsePositive);
+
+        bloomFilter.add(300000L);
+        assertTrue(bloomFilter.mightContain(300000L));
+        assertTrue((Long) bloomFilter.stats().get("memoryBytes") > 0);
+    }
+
+    @Test
+    void addDuringRebuild() {
+        // 重建时从数据库加载的快照里没有新创建的id，加载期间add进来的id不能丢
+        IdBloomFilter[] holder = new IdBloomFilter[1];
+        List<Long> ids = new ArrayList<>();
+        for (long i = 1; i <= 1000; i++) {
+            ids.add(i);
+        }
+        holder[0] = new IdBloomFilter("test", () -> {
+            holder[0].add(500000L);
+            return ids;
+        }, 1000, 0.01);
+        holder[0].rebuild();
+        assertTrue(holder[0].mightContain(500000L));
+        assertTrue(holder[0].mightContain(1L));
+    }
+
+    @Test
+    void buildInBackground() throws InterruptedException {
+        // 启动时数据库不可用：加载成功之前放行所有请求，失败后按间隔重试
+        AtomicBoolean available = new AtomicBoolean();
+        AtomicInteger attempts = new AtomicInteger();
+        List<Long> ids = new ArrayList<>();
+        ids.add(1L);
+        IdBloomFilter bloomFilter = new IdBloomFilter("test", () -> {
+            attempts.incrementAndGet();
+            if (!available.get()) {
+                throw new IllegalStateException("数据库不可用");
+            }
+            return ids;
+        }, 1000, 0.01);
+        bloomFilter.setInitRetryMillis(10);
+        try {
+            bloomFilter.scheduleRebuild(1, TimeUnit.HOURS);
+            Thread.sleep(100);
+            assertFalse(bloomFilter.isReady());
+            assertTrue(attempts.get() > 1);
+            assertTrue(bloomFilter.mightContain(2L));
+
+            available.set(true);
+            long deadline = System.currentTimeMillis() + 5000;
+            while (!bloomFilter.isReady() && System.currentTimeMillis() < deadline) {
+                Thread.sleep(5);
+            }
+            assertTrue(bloomFilter.isReady());
+            assertTrue(bloomFilter.mightContain(1L));
+            assertFalse(bloomFilter.mightContain(2L));
+        } finally {
+            bloomFilter.shutdown();
+        }
+    }
+}
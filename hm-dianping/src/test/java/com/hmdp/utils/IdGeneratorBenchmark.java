@@ -0,0 +1,94 @@
+package com.hmdp.utils;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.springframework.data.redis.connection.RedisStandaloneConfiguration;
+import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.concurrent.TimeUnit;
+
+// id生成器的基准测试：RedisWorker的incr、segment模式和雪花算法，需要本地redis（配置同application.yaml）
+//  运行：mvn test-compile 后执行 main 方法
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 3)
+@Fork(1)
+@Threads(32)
+public class IdGeneratorBenchmark {
+
+    private LettuceConnectionFactory connectionFactory;
+
+    private RedisWorker incrWorker;
+
+    private RedisWorker segmentWorker;
+
+    private SnowflakeIdGenerator snowflake;
+
+    @Setup
+    public void setup() {
+        RedisStandaloneConfiguration configuration = new RedisStandaloneConfiguration("127.0.0.1", 6379);
+        configuration.setPassword("123123");
+        connectionFactory = new LettuceConnectionFactory(configuration);
+        connectionFactory.afterPropertiesSet();
+        StringRedisTemplate stringRedisTemplate = new StringRedisTemplate(connectionFactory);
+
+        incrWorker = newWorker(stringRedisTemplate, "incr");
+        segmentWorker = newWorker(stringRedisTemplate, "segment");
+        // 租约只在启动时访问redis，不影响发号，这里直接指定workerId
+        snowflake = new SnowflakeIdGenerator(1);
+    }
+
+    private static RedisWorker newWorker(StringRedisTemplate stringRedisTemplate, String mode) {
+        RedisWorker worker = new RedisWorker();
+        ReflectionTestUtils.setField(worker, "stringRedisTemplate", stringRedisTemplate);
+        ReflectionTestUtils.setField(worker, "mode", mode);
+        ReflectionTestUtils.setField(worker, "segmentSize", 1000L);
+        ReflectionTestUtils.setField(worker, "refillRatio", 0.2);
+        return worker;
+    }
+
+    @TearDown
+    public void tearDown() {
+        connectionFactory.destroy();
+    }
+
+    @Benchmark
+    public long incr() {
+        return incrWorker.nextId("benchmark");
+    }
+
+    @Benchmark
+    public long segment() {
+        return segmentWorker.nextId("benchmark");
+    }
+
+    @Benchmark
+    public long snowflake() {
+        return snowflake.nextId();
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder()
+                .include(IdGeneratorBenchmark.class.getSimpleName())
+                .build();
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,26 @@
+package com.hmdp.utils;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LatencyHistogramTest {
+
+    @Test
+    void snapshot() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 0; i < 99; i++) {
+            histogram.record(TimeUnit.MICROSECONDS.toNanos(800));
+        }
+        histogram.record(TimeUnit.MILLISECONDS.toNanos(30));
+
+        Map<String, Object> snapshot = histogram.snapshot();
+        assertEquals(100L, snapshot.get("count"));
+        assertEquals(1.0, snapshot.get("p50Ms"));
+        assertEquals(1.0, snapshot.get("p99Ms"));
+        assertEquals(30.0, snapshot.get("maxMs"));
+    }
+}
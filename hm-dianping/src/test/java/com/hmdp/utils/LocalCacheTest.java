@@ -0,0 +1,44 @@
+package com.hmdp.utils;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LocalCacheTest {
+
+    @Test
+    void getAndInvalidate() {
+        LocalCache cache = new LocalCache(100, 60_000L);
+        cache.put("cache:shop:1", "shop1");
+
+        assertEquals("shop1", cache.get("cache:shop:1"));
+        assertNull(cache.get("cache:shop:2"));
+
+        cache.invalidate("cache:shop:1");
+        assertNull(cache.get("cache:shop:1"));
+
+        assertEquals(1L, cache.stats().get("hits"));
+        assertEquals(2L, cache.stats().get("misses"));
+    }
+
+    @Test
+    void expireByTtl() throws InterruptedException {
+        LocalCache cache = new LocalCache(100, 10L);
+        cache.put("cache:shop:1", "shop1");
+        Thread.sleep(20L);
+
+        assertNull(cache.get("cache:shop:1"));
+        assertEquals(1L, cache.stats().get("evictions"));
+    }
+
+    @Test
+    void evictBySize() {
+        LocalCache cache = new LocalCache(16, 60_000L);
+        for (int i = 0; i < 1000; i++) {
+            cache.put("cache:shop:" + i, i);
+        }
+
+        assertTrue(cache.size() <= 16);
+        assertTrue((Long) cache.stats().get("evictions") >= 1000 - 16);
+    }
+}
@@ -0,0 +1,89 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.VoucherOrder;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.time.LocalDateTime;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class OrderJournalTest {
+
+    @TempDir
+    File dir;
+
+    @Test
+    void replay() throws Exception {
+        // 每段只能放2条记录，5条订单会写满两段
+        OrderJournal journal = new OrderJournal(dir, 80);
+        assertTrue(journal.open().isEmpty());
+        for (long id = 1; id <= 5; id++) {
+            assertTrue(journal.awaitDurable(journal.append(order(id)), 1000));
+        }
+        // 第一段全部入库，整段删除；第二段作废一条、还剩一条没入库
+        journal.commit(Arrays.asList(order(1), order(2)));
+        journal.cancel(3L);
+        journal.close();
+        assertEquals(2, dir.listFiles().length);
+
+        // 重启后只重放没入库、没作废的订单
+        OrderJournal reopened = new OrderJournal(dir, 80);
+        List<VoucherOrder> recovered = reopened.open();
+        assertEquals(Arrays.asList(4L, 5L), recovered.stream().map(VoucherOrder::getId).collect(Collectors.toList()));
+        assertEquals(Long.valueOf(40), recovered.get(0).getUserId());
+        assertEquals(Long.valueOf(400), recovered.get(0).getVoucherId());
+
+        // 重放的订单都入库后，旧的段被删除，只剩新打开的段
+        reopened.commit(recovered);
+        assertEquals(1, dir.listFiles().length);
+        reopened.close();
+    }
+
+    @Test
+    void commitAll() throws Exception {
+        // 订单都入库后正常停机，重启时不能再重放
+        OrderJournal journal = new OrderJournal(dir, 80);
+        journal.open();
+        for (long id = 1; id <= 3; id++) {
+            assertTrue(journal.awaitDurable(journal.append(order(id)), 1000));
+        }
+        journal.commit(Arrays.asList(order(1), order(2), order(3)));
+        journal.close();
+        assertEquals(0, dir.listFiles().length);
+
+        OrderJournal reopened = new OrderJournal(dir, 80);
+        assertTrue(reopened.open().isEmpty());
+        reopened.close();
+    }
+
+    @Test
+    void commitBeforeCrash() throws Exception {
+        // 没有正常关闭（进程被杀），已经commit的订单也不会重放
+        OrderJournal journal = new OrderJournal(dir, 400);
+        journal.open();
+        for (long id = 1; id <= 3; id++) {
+            assertTrue(journal.awaitDurable(journal.append(order(id)), 1000));
+        }
+        journal.commit(Arrays.asList(order(1), order(3)));
+
+        OrderJournal reopened = new OrderJournal(dir, 400);
+        List<VoucherOrder> recovered = reopened.open();
+        assertEquals(Arrays.asList(2L), recovered.stream().map(VoucherOrder::getId).collect(Collectors.toList()));
+        reopened.close();
+        journal.close();
+    }
+
+    private static VoucherOrder order(long id) {
+        VoucherOrder order = new VoucherOrder();
+        order.setId(id);
+        order.setUserId(id * 10);
+        order.setVoucherId(id * 100);
+        order.setCreateTime(LocalDateTime.now());
+        return order;
+    }
+}
@@ -3,7 +3,10 @@ package com.hmdp.utils;
 import org.junit.jupiter.api.Test;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.util.ReflectionTestUtils;
 
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -37,4 +40,33 @@ class RedisWorkerTest {
         long end = System.currentTimeMillis();
         System.out.println("用时：" + (end - begin) + "ms");
     }
-}
\ No newline at end of file
+
+    @Test
+    void nextIdSegment() throws InterruptedException {
+        ReflectionTestUtils.setField(redisWorker, "mode", "segment");
+        Set<Long> ids = ConcurrentHashMap.newKeySet();
+        CountDownLatch countDownLatch = new CountDownLatch(300);
+
+        Runnable task = () -> {
+            long last = 0;
+            for(int i = 0; i < 100; ++i) {
+                long id = redisWorker.nextId("order");
+                ids.add(id);
+                // 同一个线程拿到的id是递增的
+                assertTrue(id > last);
+                last = id;
+            }
+            countDownLatch.countDown();
+        };
+
+        long begin = System.currentTimeMillis();
+        for(int i = 0; i < 300; ++i) {
+            pool.submit(task);
+        }
+        countDownLatch.await();
+        long end = System.currentTimeMillis();
+        System.out.println("用时：" + (end - begin) + "ms");
+        assertEquals(300 * 100, ids.size());
+        ReflectionTestUtils.setField(redisWorker, "mode", "incr");
+    }
+}
@@ -0,0 +1,47 @@
+package com.hmdp.utils;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SeckillKeysTest {
+
+    @Test
+    void split() {
+        assertArrayEquals(new int[]{4, 3, 3}, SeckillKeys.split(10, 3));
+        assertArrayEquals(new int[]{1, 1, 0, 0}, SeckillKeys.split(2, 4));
+        assertEquals(1000, Arrays.stream(SeckillKeys.split(1000, 7)).sum());
+    }
+
+    @Test
+    void keys() {
+        assertEquals("seckill:stock:10", SeckillKeys.stockKey(10L, 1, 0));
+        assertEquals("seckill:order:10", SeckillKeys.orderKey(10L, 1, 0));
+        assertEquals("seckill:stock:{10:2}", SeckillKeys.stockKey(10L, 4, 2));
+        assertEquals("seckill:order:{10:2}", SeckillKeys.orderKey(10L, 4, 2));
+        assertEquals("seckill:buyer:10", SeckillKeys.buyerKey(10L, 1, 0));
+        assertEquals("seckill:buyer:{10:2}", SeckillKeys.buyerKey(10L, 4, 2));
+        assertEquals("seckill:time:{10:2}", SeckillKeys.timeKey(10L, 4, 2));
+        assertEquals("seckill:limit:{10:2}:user:7", SeckillKeys.userLimitKey(10L, 4, 2, 7L));
+        assertEquals("seckill:limit:10:user:7", SeckillKeys.userLimitKey(10L, 1, 0, 7L));
+        assertEquals("stream.orders:voucher:10", SeckillKeys.streamKey(10L, 1, 0));
+        assertEquals("stream.orders:voucher:{10:2}", SeckillKeys.streamKey(10L, 4, 2));
+    }
+
+    @Test
+    void shardOf() {
+        int[] counts = new int[8];
+        for (long userId = 1; userId <= 80000; userId++) {
+            int shard = SeckillKeys.shardOf(userId, 8);
+            assertEquals(shard, SeckillKeys.shardOf(userId, 8));
+            counts[shard]++;
+        }
+        // 连续的用户id也能均匀分布
+        for (int count : counts) {
+            assertTrue(count > 9000 && count < 11000, "count = " + count);
+        }
+        assertEquals(0, SeckillKeys.shardOf(123L, 1));
+    }
+}
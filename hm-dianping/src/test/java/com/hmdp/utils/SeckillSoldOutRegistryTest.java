@@ -0,0 +1,93 @@
+package com.hmdp.utils;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.data.redis.connection.DefaultMessage;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.data.redis.listener.Topic;
+import org.springframework.data.redis.serializer.RedisSerializer;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+class SeckillSoldOutRegistryTest {
+
+    private StringRedisTemplate stringRedisTemplate;
+
+    private SeckillSoldOutRegistry registry;
+
+    private MessageListener listener;
+
+    @BeforeEach
+    void setUp() {
+        stringRedisTemplate = mock(StringRedisTemplate.class);
+        when(stringRedisTemplate.getStringSerializer()).thenReturn(RedisSerializer.string());
+        RedisMessageListenerContainer listenerContainer = mock(RedisMessageListenerContainer.class);
+        registry = new SeckillSoldOutRegistry();
+        ReflectionTestUtils.setField(registry, "stringRedisTemplate", stringRedisTemplate);
+        ReflectionTestUtils.setField(registry, "listenerContainer", listenerContainer);
+        ReflectionTestUtils.setField(registry, "ttlSeconds", 30L);
+        ReflectionTestUtils.invokeMethod(registry, "init");
+
+        ArgumentCaptor<MessageListener> captor = ArgumentCaptor.forClass(MessageListener.class);
+        verify(listenerContainer).addMessageListener(captor.capture(), any(Topic.class));
+        listener = captor.getValue();
+    }
+
+    @Test
+    void markSoldOut() {
+        assertFalse(registry.isSoldOut(1L));
+
+        // 标记后本地直接拒绝，只通知其他节点一次
+        registry.markSoldOut(1L);
+        registry.markSoldOut(1L);
+        assertTrue(registry.isSoldOut(1L));
+        assertFalse(registry.isSoldOut(2L));
+        verify(stringRedisTemplate, times(1)).convertAndSend(RedisConstants.SECKILL_SOLD_OUT_CHANNEL, "soldout|1");
+
+        // 补充库存后清除，并通知其他节点
+        registry.clear(1L);
+        assertFalse(registry.isSoldOut(1L));
+        verify(stringRedisTemplate).convertAndSend(RedisConstants.SECKILL_SOLD_OUT_CHANNEL, "restock|1");
+    }
+
+    @Test
+    void expire() throws InterruptedException {
+        // 标记过期后放请求去redis确认
+        ReflectionTestUtils.setField(registry, "ttlSeconds", 0L);
+        registry.markSoldOut(1L);
+        Thread.sleep(5);
+        assertFalse(registry.isSoldOut(1L));
+
+        // 过期之后再标记，要重新通知其他节点
+        registry.markSoldOut(1L);
+        verify(stringRedisTemplate, times(2)).convertAndSend(RedisConstants.SECKILL_SOLD_OUT_CHANNEL, "soldout|1");
+    }
+
+    @Test
+    void onMessage() {
+        // 其他节点的通知只修改本地标记，不再转发
+        listener.onMessage(message("soldout|1"), null);
+        assertTrue(registry.isSoldOut(1L));
+
+        listener.onMessage(message("restock|1"), null);
+        assertFalse(registry.isSoldOut(1L));
+
+        // 格式不对的消息直接忽略
+        listener.onMessage(message("soldout"), null);
+        verify(stringRedisTemplate, never()).convertAndSend(anyString(), any());
+        assertEquals(1L, registry.stats().get("rejected"));
+    }
+
+    private static DefaultMessage message(String body) {
+        return new DefaultMessage(RedisConstants.SECKILL_SOLD_OUT_CHANNEL.getBytes(StandardCharsets.UTF_8),
+                body.getBytes(StandardCharsets.UTF_8));
+    }
+}
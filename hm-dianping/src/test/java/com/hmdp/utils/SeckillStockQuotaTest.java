@@ -0,0 +1,109 @@
+package com.hmdp.utils;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ValueOperations;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+// redis中的库存用AtomicLong模拟，seckill_take.lua 一次最多取走 blockSize 个
+class SeckillStockQuotaTest {
+
+    private final AtomicLong stock = new AtomicLong();
+
+    private SeckillStockQuota stockQuota;
+
+    @BeforeEach
+    @SuppressWarnings("unchecked")
+    void setUp() {
+        StringRedisTemplate stringRedisTemplate = mock(StringRedisTemplate.class);
+        ValueOperations<String, String> valueOperations = mock(ValueOperations.class);
+        when(stringRedisTemplate.opsForValue()).thenReturn(valueOperations);
+        doAnswer(invocation -> {
+            long count = Long.parseLong(invocation.getArgument(2));
+            while (true) {
+                long current = stock.get();
+                long taken = Math.min(current, count);
+                if (stock.compareAndSet(current, current - taken)) {
+                    return taken;
+                }
+            }
+        }).when(stringRedisTemplate).execute(any(RedisScript.class), anyList(), any());
+        when(valueOperations.increment(anyString())).thenAnswer(invocation -> stock.incrementAndGet());
+        when(valueOperations.increment(anyString(), anyLong())).thenAnswer(invocation -> stock.addAndGet(invocation.getArgument(1)));
+
+        stockQuota = new SeckillStockQuota();
+        ReflectionTestUtils.setField(stockQuota, "stringRedisTemplate", stringRedisTemplate);
+        ReflectionTestUtils.setField(stockQuota, "metaCache", mock(SeckillVoucherMetaCache.class));
+        ReflectionTestUtils.setField(stockQuota, "enabled", true);
+        ReflectionTestUtils.setField(stockQuota, "blockSize", 10);
+        ReflectionTestUtils.setField(stockQuota, "lowRatio", 0.2);
+        ReflectionTestUtils.setField(stockQuota, "retryMillis", 100L);
+        ReflectionTestUtils.invokeMethod(stockQuota, "init");
+    }
+
+    @AfterEach
+    void tearDown() {
+        ReflectionTestUtils.invokeMethod(stockQuota, "destroy");
+    }
+
+    @Test
+    void tryAcquire() throws InterruptedException {
+        // 并发扣减，成功的数量正好等于库存，不会超卖
+        stock.set(1000);
+        ExecutorService pool = Executors.newFixedThreadPool(16);
+        CountDownLatch start = new CountDownLatch(1);
+        AtomicInteger acquired = new AtomicInteger();
+        for (int i = 0; i < 16; i++) {
+            pool.submit(() -> {
+                start.await();
+                for (int j = 0; j < 100; j++) {
+                    if (stockQuota.tryAcquire(1L, 1)) {
+                        acquired.incrementAndGet();
+                    }
+                }
+                return null;
+            });
+        }
+        start.countDown();
+        pool.shutdown();
+        assertTrue(pool.awaitTermination(10, TimeUnit.SECONDS));
+
+        assertEquals(1000, acquired.get());
+        assertEquals(0, stock.get());
+        assertFalse(stockQuota.tryAcquire(1L, 1));
+    }
+
+    @Test
+    void releaseOnClose() {
+        // 停机时没用完的配额还给redis，还回去之后再退的库存直接加到redis
+        stock.set(100);
+        for (int i = 0; i < 3; i++) {
+            assertTrue(stockQuota.tryAcquire(1L, 1));
+        }
+        assertEquals(90, stock.get());
+        stockQuota.release(1L, 1);
+        assertEquals(90, stock.get());
+
+        ReflectionTestUtils.invokeMethod(stockQuota, "destroy");
+        assertEquals(98, stock.get());
+
+        stockQuota.release(1L, 1);
+        assertEquals(99, stock.get());
+        assertEquals(10L, stockQuota.stats().get("leased"));
+        assertEquals(9L, stockQuota.stats().get("returned"));
+    }
+}
@@ -0,0 +1,88 @@
+package com.hmdp.utils;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SingleFlightTest {
+
+    @Test
+    void execute() throws InterruptedException {
+        SingleFlight singleFlight = new SingleFlight();
+        AtomicInteger dbCalls = new AtomicInteger();
+        ExecutorService pool = Executors.newFixedThreadPool(20);
+        CountDownLatch start = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(20);
+        AtomicInteger results = new AtomicInteger();
+
+        for (int i = 0; i < 20; i++) {
+            pool.submit(() -> {
+                try {
+                    start.await();
+                    String value = singleFlight.execute("cache:shop:1", () -> {
+                        dbCalls.incrementAndGet();
+                        sleep(200);
+                        return "shop1";
+                    }, 3, TimeUnit.SECONDS);
+                    if ("shop1".equals(value)) {
+                        results.incrementAndGet();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    done.countDown();
+                }
+            });
+        }
+        start.countDown();
+        done.await();
+        pool.shutdown();
+
+        assertEquals(1, dbCalls.get());
+        assertEquals(20, results.get());
+        assertEquals(19L, singleFlight.stats().get("coalesced"));
+    }
+
+    @Test
+    void timeoutFallsBackToOwnLoad() throws Exception {
+        // 加载者卡住时，等待超时的线程自己去加载，不会抛出异常
+        SingleFlight singleFlight = new SingleFlight();
+        AtomicInteger dbCalls = new AtomicInteger();
+        CountDownLatch loading = new CountDownLatch(1);
+        ExecutorService pool = Executors.newSingleThreadExecutor();
+        Future<String> slow = pool.submit(() -> singleFlight.execute("cache:shop:1", () -> {
+            dbCalls.incrementAndGet();
+            loading.countDown();
+            sleep(500);
+            return "slow";
+        }, 3, TimeUnit.SECONDS));
+        loading.await();
+
+        String value = singleFlight.execute("cache:shop:1", () -> {
+            dbCalls.incrementAndGet();
+            return "own";
+        }, 50, TimeUnit.MILLISECONDS);
+        assertEquals("own", value);
+        assertEquals("slow", slow.get());
+        pool.shutdown();
+
+        assertEquals(2, dbCalls.get());
+        assertEquals(1L, singleFlight.stats().get("timeouts"));
+        assertEquals(2L, singleFlight.stats().get("loads"));
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package com.hmdp.utils;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SnowflakeIdGeneratorTest {
+
+    private static final long NOW = 1760000000000L;
+
+    @Test
+    void sequenceExhausted() {
+        // 每调用10000次时钟才走1毫秒，一毫秒内的4096个序列号肯定会用完
+        AtomicLong calls = new AtomicLong();
+        SnowflakeIdGenerator generator = new SnowflakeIdGenerator(7, 5, () -> NOW + calls.incrementAndGet() / 10000);
+
+        Set<Long> ids = new HashSet<>();
+        long last = 0;
+        for (int i = 0; i < 20000; i++) {
+            long id = generator.nextId();
+            assertTrue(id > last);
+            assertEquals(7, SnowflakeIdGenerator.workerIdOf(id));
+            ids.add(id);
+            last = id;
+        }
+        assertEquals(20000, ids.size());
+        assertTrue((Long) generator.stats().get("exhausted") > 0);
+    }
+
+    @Test
+    void clockRollback() {
+        AtomicLong clock = new AtomicLong(NOW);
+        SnowflakeIdGenerator generator = new SnowflakeIdGenerator(1, 5, clock::get);
+        long before = generator.nextId();
+
+        // 大幅回拨：沿用上一次的时间戳继续发号
+        clock.set(NOW - 10000);
+        Set<Long> ids = new HashSet<>();
+        long last = before;
+        for (int i = 0; i < 10000; i++) {
+            long id = generator.nextId();
+            assertTrue(id > last);
+            ids.add(id);
+            last = id;
+        }
+        assertEquals(10000, ids.size());
+        assertTrue((Long) generator.stats().get("rollbacks") > 0);
+    }
+
+    @Test
+    void differentFromRedisWorkerIds() {
+        SnowflakeIdGenerator generator = new SnowflakeIdGenerator(1);
+        long id = generator.nextId();
+        // RedisWorker的id：秒级时间戳 << 32，几十年内第62位都是0
+        long redisWorkerId = (System.currentTimeMillis() / 1000 - 1735689600L) << 32 | 1;
+        assertEquals(0, redisWorkerId >>> 62);
+        assertEquals(1, id >>> 62);
+    }
+
+    @Test
+    void leaseLost() {
+        SnowflakeIdGenerator generator = new SnowflakeIdGenerator(1);
+        generator.setWorkerId(-1);
+        assertThrows(IllegalStateException.class, generator::nextId);
+        generator.setWorkerId(2);
+        assertEquals(2, SnowflakeIdGenerator.workerIdOf(generator.nextId()));
+    }
+}
@@ -0,0 +1,45 @@
+package com.hmdp.utils;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TokenBucketTest {
+
+    @Test
+    void tryAcquire() {
+        AtomicLong clock = new AtomicLong(0);
+        TokenBucket bucket = new TokenBucket(100, 10, clock::get);
+
+        // 桶满时最多放行10个
+        int passed = 0;
+        for (int i = 0; i < 50; i++) {
+            if (bucket.tryAcquire()) {
+                passed++;
+            }
+        }
+        assertEquals(10, passed);
+
+        // 过了100ms，生成了10个令牌
+        clock.addAndGet(100_000_000L);
+        passed = 0;
+        for (int i = 0; i < 50; i++) {
+            if (bucket.tryAcquire()) {
+                passed++;
+            }
+        }
+        assertEquals(10, passed);
+
+        // 过了很久，令牌也不会超过桶的容量
+        clock.addAndGet(10_000_000_000L);
+        passed = 0;
+        for (int i = 0; i < 50; i++) {
+            if (bucket.tryAcquire()) {
+                passed++;
+            }
+        }
+        assertEquals(10, passed);
+    }
+}